@@ -38,6 +38,7 @@ package com.joshfix.geotools.geotiff;
 import it.geosolutions.imageio.maskband.DatasetLayout;
 import it.geosolutions.imageioimpl.plugins.tiff.CogImageReaderSpi;
 import it.geosolutions.imageioimpl.plugins.tiff.stream.CachingHttpCogImageInputStreamSpi;
+import it.geosolutions.imageioimpl.plugins.tiff.stream.FileCogImageInputStreamSpi;
 import it.geosolutions.imageioimpl.plugins.tiff.stream.HttpCogImageInputStreamSpi;
 import it.geosolutions.imageioimpl.plugins.tiff.TiffDatasetLayoutImpl;
 import it.geosolutions.jaiext.range.NoDataContainer;
@@ -208,11 +209,17 @@ public class CogReader extends AbstractGridCoverage2DReader implements GridCover
             else {
 
                 inStreamSPI = ImageIOExt.getImageInputStreamSPI(source);
-                LOGGER.severe("inStreamSPI: " + inStreamSPI.getClass().getName());
                 //inStreamSPI = new HttpCogImageInputStreamSpi();
-                inStreamSPI = new CachingHttpCogImageInputStreamSpi();
+                if (FileCogImageInputStreamSpi.canRead(source)) {
+                    inStreamSPI = new FileCogImageInputStreamSpi();
+                } else if (CachingHttpCogImageInputStreamSpi.canRead(source)) {
+                    // any scheme with a registered RangeReaderFactory
+                    inStreamSPI = new CachingHttpCogImageInputStreamSpi();
+                }
                 if (inStreamSPI == null)
                     throw new IllegalArgumentException("No input stream for the provided source");
+                if (LOGGER.isLoggable(Level.FINE))
+                    LOGGER.fine("inStreamSPI: " + inStreamSPI.getClass().getName());
                 inStream =
                         inStreamSPI.createInputStreamInstance(
                                 source, ImageIO.getUseCache(), ImageIO.getCacheDirectory());
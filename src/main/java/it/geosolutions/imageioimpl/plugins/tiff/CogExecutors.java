@@ -0,0 +1,90 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import it.geosolutions.imageioimpl.plugins.tiff.stream.CacheConfig;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Executors used by the read pipeline for work that is not tied to the calling thread: HTTP client callbacks, retry
+ * and hedging delays, and per-tile cache writes.
+ * <p>
+ * With {@link #COG_THREADS_VIRTUAL} enabled on Java 21 or later, every task runs on its own virtual thread, so
+ * thousands of concurrent reads can block while waiting on the network without exhausting platform threads.  The
+ * virtual thread executor is looked up reflectively so the library still runs on Java 11; when it is not available the
+ * platform defaults are used.
+ */
+public final class CogExecutors {
+
+    // whether the read pipeline should run on virtual threads (requires Java 21+)
+    public static final String COG_THREADS_VIRTUAL = "cog.threads.virtual";
+
+    private static final Logger LOGGER = Logger.getLogger(CogExecutors.class.getName());
+    private static final ExecutorService VIRTUAL_EXECUTOR = createVirtualExecutor();
+    private static final ScheduledThreadPoolExecutor SCHEDULER = createScheduler();
+
+    private CogExecutors() {
+    }
+
+    private static ExecutorService createVirtualExecutor() {
+        if (!Boolean.parseBoolean(CacheConfig.getPropertyValue(COG_THREADS_VIRTUAL, "false"))) {
+            return null;
+        }
+        try {
+            ExecutorService executor =
+                    (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            LOGGER.fine("Running the COG read pipeline on virtual threads");
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            LOGGER.warning(COG_THREADS_VIRTUAL + " is enabled but virtual threads are not available on Java "
+                    + System.getProperty("java.version") + ", using platform threads");
+            return null;
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor createScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "cog-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    /**
+     * @return true if virtual threads were requested and are available
+     */
+    public static boolean isVirtual() {
+        return VIRTUAL_EXECUTOR != null;
+    }
+
+    /**
+     * @return the virtual thread executor, or the common pool if virtual threads are disabled
+     */
+    public static Executor getExecutor() {
+        return VIRTUAL_EXECUTOR != null ? VIRTUAL_EXECUTOR : ForkJoinPool.commonPool();
+    }
+
+    /**
+     * @return an executor that runs tasks on {@link #getExecutor()} after the given delay
+     */
+    public static Executor delayedExecutor(long delay, TimeUnit unit) {
+        return CompletableFuture.delayedExecutor(delay, unit, getExecutor());
+    }
+
+    /**
+     * Runs the task on {@link #getExecutor()} after the given delay.  Unlike tasks handed to {@link #delayedExecutor},
+     * a scheduled task can be cancelled, which drops it and everything it references right away.
+     */
+    public static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return SCHEDULER.schedule(() -> getExecutor().execute(task), delay, unit);
+    }
+}
@@ -2,6 +2,7 @@ package it.geosolutions.imageioimpl.plugins.tiff;
 
 import it.geosolutions.imageio.plugins.tiff.BaselineTIFFTagSet;
 import it.geosolutions.imageio.plugins.tiff.TIFFField;
+import it.geosolutions.imageioimpl.plugins.tiff.stream.CacheConfig;
 import it.geosolutions.imageioimpl.plugins.tiff.stream.CachingHttpCogImageInputStreamSpi;
 import it.geosolutions.imageioimpl.plugins.tiff.stream.CogImageInputStream;
 
@@ -12,6 +13,12 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -20,12 +27,48 @@ import java.util.logging.Logger;
  */
 public class CogImageReader extends TIFFImageReader {
 
+    // maximum time in milliseconds a single read may take before it is aborted. 0 disables the timeout
+    public static final String COG_READ_TIMEOUT = "cog.read.timeout";
+
+    // TileOffsets, TileByteCounts, StripOffsets and StripByteCounts
+    private static final int[] TILE_ARRAY_TAGS = {324, 325, 273, 279};
     private final static Logger LOGGER = Logger.getLogger(CogImageReader.class.getName());
 
+    protected long readTimeout = Long.parseLong(CacheConfig.getPropertyValue(COG_READ_TIMEOUT, "0"));
+    protected volatile long deadline;
+    // completed to cancel the range requests of the current read
+    protected volatile CompletableFuture<Void> readCancellation;
+    protected TileDirectory tileDirectory;
+
     public CogImageReader(ImageReaderSpi originatingProvider) {
         super(originatingProvider);
     }
 
+    /**
+     * Sets an absolute deadline, in epoch milliseconds, for the reads made by this reader, e.g. the time at which the
+     * request that triggered them is abandoned.  Reads still running at the deadline are aborted.  0 clears it.
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public void setReadTimeout(long readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * In addition to stopping the decoding loop, cancels the range requests of the current read so that an abandoned
+     * read stops consuming bandwidth and memory.  Other reads of the same stream are left alone.
+     */
+    @Override
+    public void abort() {
+        super.abort();
+        CompletableFuture<Void> cancellation = readCancellation;
+        if (cancellation != null) {
+            cancellation.complete(null);
+        }
+    }
+
     @Override
     public BufferedImage read(int imageIndex, ImageReadParam param) throws IOException {
         // if the image input stream isn't a CogImageInputStream, skip all this nonsense and just use the original code
@@ -33,6 +76,44 @@ public class CogImageReader extends TIFFImageReader {
             return super.read(imageIndex, param);
         }
 
+        clearAbortRequest();
+        CompletableFuture<Void> cancellation = new CompletableFuture<>();
+        readCancellation = cancellation;
+        ScheduledFuture<?> deadlineTask = scheduleDeadline();
+        try {
+            return readCog(imageIndex, param, cancellation);
+        } finally {
+            if (deadlineTask != null) {
+                deadlineTask.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Schedules an abort of the read for when the deadline, or the read timeout, is reached.
+     *
+     * @return the scheduled abort, to be cancelled once the read completes, or null if there is no deadline
+     */
+    protected ScheduledFuture<?> scheduleDeadline() {
+        long now = System.currentTimeMillis();
+        long expiry = deadline > 0 ? deadline : 0;
+        if (readTimeout > 0) {
+            expiry = expiry > 0 ? Math.min(expiry, now + readTimeout) : now + readTimeout;
+        }
+        if (expiry <= 0) {
+            return null;
+        }
+        return CogExecutors.schedule(() -> {
+            LOGGER.fine("Read deadline reached, aborting read");
+            abort();
+        }, Math.max(0, expiry - now), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param cancellation completed when this read is aborted
+     */
+    protected BufferedImage readCog(int imageIndex, ImageReadParam param, CompletableFuture<Void> cancellation)
+            throws IOException {
         LOGGER.fine("Reading pixels at offset (" + param.getSourceRegion().getX() + ", "
                 + param.getSourceRegion().getY() + ") with a width of " + param.getSourceRegion().getWidth()
                 + "px and height of " + param.getSourceRegion().getHeight() + "px");
@@ -45,6 +126,8 @@ public class CogImageReader extends TIFFImageReader {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        tileDirectory = loadTileDirectory(imageIndex);
+
         // prepare for reading
         this.theImage = getDestination(param, getImageTypes(imageIndex), width, height, noData);
 
@@ -64,41 +147,189 @@ public class CogImageReader extends TIFFImageReader {
 
         LOGGER.fine("Reading tiles (" + minTileX + "," + minTileY + ") - (" + maxTileX + "," + maxTileY + ")");
 
-        CogTileInfo cogTileInfo = ((CogImageInputStream)stream).getCogTileInfo();
+        List<Integer> tileIndices = getTileIndices(param, minTileX, minTileY, maxTileX, maxTileY);
+
+        // fetch the offsets and byte counts of the requested tiles if their arrays were left out of the header
+        try {
+            resolveLazyTileArrays(imageIndex, tileIndices, cancellation);
+        } catch (IOException e) {
+            if (abortRequested()) {
+                LOGGER.fine("Read aborted while fetching tile offsets");
+                processReadAborted();
+                return theImage;
+            }
+            throw e;
+        }
+
+        // complies information about each tile offset and byte length
+        List<CogTileInfo.TileRange> tileRanges = new ArrayList<>(tileIndices.size());
+        for (int tileIndex : tileIndices) {
+            long offset = getTileOrStripOffset(tileIndex);
+            long byteLength = getTileOrStripByteCount(tileIndex);
+            tileRanges.add(new CogTileInfo.TileRange(imageIndex, tileIndex, offset, byteLength));
+        }
+        ReadPlan readPlan = new ReadPlan(tileRanges, cancellation);
+
+        try {
+            return readTiles(imageIndex, param, readPlan);
+        } finally {
+            // lets the stream release whatever it still holds for this read
+            readPlan.complete();
+        }
+    }
+
+    /**
+     * Fetches the tiles of the plan through the stream and decodes them.
+     */
+    protected BufferedImage readTiles(int imageIndex, ImageReadParam param, ReadPlan readPlan) throws IOException {
+        // read the ranges of this read only and cache them in the image input stream delegate
+        try {
+            ((CogImageInputStream) stream).readRanges(readPlan);
+        } catch (IOException e) {
+            if (abortRequested()) {
+                LOGGER.fine("Read aborted while fetching ranges");
+                processReadAborted();
+                return theImage;
+            }
+            throw e;
+        }
+        if (abortRequested()) {
+            processReadAborted();
+            return theImage;
+        }
+
+        // At this point, the CogImageInputStream has fetched and cached all of the bytes from the requested tiles, or,
+        // when pipelined, has sent the requests and will hand each tile to the decoder as soon as its bytes arrive.
+        // Now we proceed with the legacy TIFFImageReader code.
+        try {
+            return super.read(imageIndex, param);
+        } catch (IOException e) {
+            if (abortRequested()) {
+                LOGGER.fine("Read aborted while decoding tiles");
+                processReadAborted();
+                return theImage;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the tile offsets and byte counts of the image, shared by every stream reading the same version of the
+     * source.  They are parsed from the image metadata the first time the image is read.
+     *
+     * @return the tile directory, or null if the image has no byte counts
+     */
+    protected TileDirectory loadTileDirectory(int imageIndex) {
+        if (hasLazyTileArrays(imageIndex)) {
+            // only the entries of the tiles read so far are known
+            return null;
+        }
+        String source = ((CogImageInputStream) stream).getSourceKey();
+        TileDirectory directory = source == null ? null : TileDirectory.get(source, imageIndex);
+        if (directory != null) {
+            return directory;
+        }
+        TIFFField offsets = getTileOrStripOffsetsField();
+        TIFFField byteCounts = getTileOrStripByteCountsField();
+        if (offsets == null || byteCounts == null) {
+            return null;
+        }
+        directory = TileDirectory.fromFields(offsets, byteCounts);
+        if (source != null) {
+            TileDirectory.put(source, imageIndex, directory);
+        }
+        return directory;
+    }
 
-        // loops through each requested tile and complies information about each tile offset and byte length
+    /**
+     * Loops through each requested tile and determines its index.  Requires tilesAcross and tilesDown to be computed.
+     *
+     * @return the indices of the tiles between the given tile bounds, inclusive
+     */
+    protected List<Integer> getTileIndices(ImageReadParam param, int minTileX, int minTileY, int maxTileX,
+                                           int maxTileY) {
+        List<Integer> tileIndices = new ArrayList<>();
         if (planarConfiguration == BaselineTIFFTagSet.PLANAR_CONFIGURATION_PLANAR) {
-            for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
-                for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
-                    for (int band = 0; band < numBands; band++) {
-                        int tileIndex = band * tilesAcross * tilesDown;
-                        long offset = getTileOrStripOffset(tileIndex);
-                        long byteLength = getTileOrStripByteCount(tileIndex);
-                        cogTileInfo.addTileRange(tileIndex, offset, byteLength);
+            // each band is stored in its own set of tiles, one after the other. only the requested bands are read
+            for (int band : getPlanarSourceBands(param)) {
+                for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
+                    for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
+                        tileIndices.add(band * tilesAcross * tilesDown + tileY * tilesAcross + tileX);
                     }
                 }
             }
         } else {
             for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
                 for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
-                    int tileIndex = tileY * tilesAcross + tileX;
-                    long offset = getTileOrStripOffset(tileIndex);
-                    long byteLength = getTileOrStripByteCount(tileIndex);
-                    cogTileInfo.addTileRange(tileIndex, offset, byteLength);
+                    tileIndices.add(tileY * tilesAcross + tileX);
                 }
             }
         }
+        return tileIndices;
+    }
 
-        // read the ranges and cache them in the image input stream delegate
-        ((CogImageInputStream) stream).readRanges();
+    /**
+     * @param param the param of the current read, may be null.  The sourceBands field is not used as it may still
+     *              hold the bands of a previous read
+     * @return the source bands requested by the param, or every band of the image
+     */
+    protected int[] getPlanarSourceBands(ImageReadParam param) {
+        int[] bands = param == null ? null : param.getSourceBands();
+        if (bands == null) {
+            bands = new int[samplesPerPixel];
+            for (int band = 0; band < samplesPerPixel; band++) {
+                bands[band] = band;
+            }
+        }
+        return Arrays.stream(bands).filter(band -> band >= 0 && band < samplesPerPixel).distinct().toArray();
+    }
 
-        // At this point, the CogImageInputStream has fetched and cached all of the bytes from the requested tiles.
-        // Now we proceed with the legacy TIFFImageReader code.
-        return super.read(imageIndex, param);
+    protected boolean hasLazyTileArrays(int imageIndex) {
+        CogImageInputStream cogStream = (CogImageInputStream) stream;
+        for (int tag : TILE_ARRAY_TAGS) {
+            if (cogStream.getLazyArray(imageIndex, tag) != null) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    // TODO: this method should be protected in TIFFImageReader so it need not be reimplemented
-    protected long getTileOrStripOffset(int tileIndex) throws IIOException {
+    /**
+     * TIFFImageReader parses every IFD array with the metadata, so arrays that were left out of the header are parsed
+     * as zeros.  The entries of the requested tiles are fetched and written into the parsed fields, which is where
+     * TIFFImageReader looks up the tiles it decodes.
+     */
+    protected void resolveLazyTileArrays(int imageIndex, List<Integer> tileIndices,
+                                         CompletableFuture<Void> cancellation) throws IOException {
+        CogImageInputStream cogStream = (CogImageInputStream) stream;
+        for (int tag : TILE_ARRAY_TAGS) {
+            LazyTiffArray lazyArray = cogStream.getLazyArray(imageIndex, tag);
+            TIFFField field = lazyArray == null ? null : imageMetadata.getTIFFField(tag);
+            if (field == null) {
+                continue;
+            }
+            lazyArray.fetch(tileIndices, cancellation);
+            Object data = field.getData();
+            for (int tileIndex : tileIndices) {
+                if (tileIndex >= lazyArray.getCount()) {
+                    continue;
+                }
+                long value = lazyArray.get(tileIndex);
+                if (data instanceof long[]) {
+                    ((long[]) data)[tileIndex] = value;
+                } else if (data instanceof int[]) {
+                    ((int[]) data)[tileIndex] = (int) value;
+                } else if (data instanceof char[]) {
+                    ((char[]) data)[tileIndex] = (char) value;
+                } else {
+                    throw new IIOException("Unable to update lazily loaded tag " + tag + " stored as "
+                            + (data == null ? null : data.getClass().getSimpleName()));
+                }
+            }
+        }
+    }
+
+    protected TIFFField getTileOrStripOffsetsField() {
         TIFFField f = this.imageMetadata.getTIFFField(324);
         if (f == null) {
             f = this.imageMetadata.getTIFFField(273);
@@ -107,6 +338,27 @@ public class CogImageReader extends TIFFImageReader {
         if (f == null) {
             f = this.imageMetadata.getTIFFField(513);
         }
+        return f;
+    }
+
+    protected TIFFField getTileOrStripByteCountsField() {
+        TIFFField f = this.imageMetadata.getTIFFField(325);
+        if (f == null) {
+            f = this.imageMetadata.getTIFFField(279);
+        }
+
+        if (f == null) {
+            f = this.imageMetadata.getTIFFField(514);
+        }
+        return f;
+    }
+
+    // TODO: this method should be protected in TIFFImageReader so it need not be reimplemented
+    protected long getTileOrStripOffset(int tileIndex) throws IIOException {
+        if (tileDirectory != null && tileIndex < tileDirectory.getTileCount()) {
+            return tileDirectory.getOffset(tileIndex);
+        }
+        TIFFField f = getTileOrStripOffsetsField();
 
         if (f == null) {
             throw new IIOException("Missing required strip or tile offsets field.");
@@ -117,14 +369,10 @@ public class CogImageReader extends TIFFImageReader {
 
     // TODO: this method should be protected in TIFFImageReader so it need not be reimplemented
     protected long getTileOrStripByteCount(int tileIndex) throws IOException {
-        TIFFField f = this.imageMetadata.getTIFFField(325);
-        if (f == null) {
-            f = this.imageMetadata.getTIFFField(279);
-        }
-
-        if (f == null) {
-            f = this.imageMetadata.getTIFFField(514);
+        if (tileDirectory != null && tileDirectory.getByteCount(tileIndex) >= 0) {
+            return tileDirectory.getByteCount(tileIndex);
         }
+        TIFFField f = getTileOrStripByteCountsField();
 
         long tileOrStripByteCount;
         if (f != null) {
@@ -3,11 +3,20 @@ package it.geosolutions.imageioimpl.plugins.tiff;
 import com.google.common.primitives.Longs;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * The tiles known to a stream, shared by all of its reads.  The tiles needed by a single read are described by a
+ * {@link ReadPlan}; their ranges are registered here while the read is in progress so the stream can map stream
+ * positions back to tiles, and removed once no read in progress needs them.  Tiles may be added concurrently.
+ * <p>
+ * Tile ranges are looked up by image and tile index through a map, so the tiles of overviews never collide with those
+ * of the full resolution image, and by stream position through a sorted index of primitive
+ * arrays that is rebuilt lazily after tiles are added, so that every stream read costs a binary search at most.
+ *
  * @author joshfix
  * Created on 2019-08-28
  */
@@ -16,17 +25,62 @@ public class CogTileInfo {
     protected int headerSize = 16384;
     protected long firstTileOffset = Long.MAX_VALUE;
     protected long firstTileByteLength;
-    protected Map<Integer, TileRange> tileRanges = new HashMap<>();
+    // keyed by image index in the high and tile index in the low 32 bits
+    protected Map<Long, TileRange> tileRanges = new ConcurrentHashMap<>();
+    // the number of reads in progress that registered each tile
+    protected Map<Long, Integer> references = new ConcurrentHashMap<>();
+    protected volatile OffsetIndex offsetIndex;
+    // incremented whenever a tile is added, so a stale offset index is rebuilt
+    protected volatile int version;
 
     public void addTileRange(int tileIndex, long offset, long byteLength) {
+        addTileRange(0, tileIndex, offset, byteLength);
+    }
+
+    public synchronized void addTileRange(int imageIndex, int tileIndex, long offset, long byteLength) {
         if (offset < firstTileOffset && offset > 0) {
             firstTileOffset = offset;
             firstTileByteLength = byteLength;
         }
         if (offset < headerSize) {
-            headerSize = (int)offset -1;
+            // the offset is smaller than the int header size here, so the cast cannot overflow
+            headerSize = (int) offset - 1;
+        }
+        TileRange previous = tileRanges.put(toKey(imageIndex, tileIndex),
+                new TileRange(imageIndex, tileIndex, offset, byteLength));
+        if (previous == null || previous.getStart() != offset || previous.getByteLength() != byteLength) {
+            version++;
+        }
+    }
+
+    /**
+     * Registers the tiles of a read so that the stream can find them by position.  They must be removed with
+     * {@link #removeTileRanges(ReadPlan)} once the read has ended.
+     */
+    public synchronized void addTileRanges(ReadPlan readPlan) {
+        for (TileRange tileRange : readPlan.getTileRanges()) {
+            addTileRange(tileRange.getImageIndex(), tileRange.getIndex(), tileRange.getStart(),
+                    tileRange.getByteLength());
+            references.merge(toKey(tileRange.getImageIndex(), tileRange.getIndex()), 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Removes the tiles of a read that has ended, unless another read in progress registered them as well.
+     */
+    public synchronized void removeTileRanges(ReadPlan readPlan) {
+        for (TileRange tileRange : readPlan.getTileRanges()) {
+            long key = toKey(tileRange.getImageIndex(), tileRange.getIndex());
+            if (references.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null) == null) {
+                if (tileRanges.remove(key) != null) {
+                    version++;
+                }
+            }
         }
-        tileRanges.put(tileIndex, new TileRange(tileIndex, offset, byteLength));
+    }
+
+    protected static long toKey(int imageIndex, int tileIndex) {
+        return ((long) imageIndex << 32) | (tileIndex & 0xffffffffL);
     }
 
     public long getFirstTileOffset() {
@@ -37,33 +91,128 @@ public class CogTileInfo {
         return firstTileByteLength;
     }
 
-    public Map<Integer, TileRange> getTileRanges() {
+    public Map<Long, TileRange> getTileRanges() {
         return tileRanges;
     }
 
-    public TileRange getTileRange(int tileIndex) {
-        return tileRanges.get(tileIndex);
+    public TileRange getTileRange(int imageIndex, int tileIndex) {
+        return tileRanges.get(toKey(imageIndex, tileIndex));
     }
 
+    /**
+     * @return the range of the tile containing the stream position or, where ranges overlap, the one starting closest
+     * to it.  null if no tile contains the position
+     */
     public TileRange getTileRange(long offset) {
-        //if (offset < headerSize) {
-        //    return new TileRange(-1, 0, headerSize);
-        //}
-        for (TileRange tileRange : tileRanges.values()) {
-            if (offset >= tileRange.getStart() && offset < tileRange.getEnd()) {
-                return tileRange;
-            }
-        }
-        return null;
+        OffsetIndex index = getOffsetIndex();
+        int position = index.find(offset);
+        return position < 0 ? null : index.ranges[position];
     }
 
     public int getTileIndex(long offset) {
-        for (Map.Entry<Integer, TileRange> entry : tileRanges.entrySet()) {
-            if (offset >= entry.getValue().getStart() && offset < entry.getValue().getEnd()) {
-                return entry.getKey();
+        OffsetIndex index = getOffsetIndex();
+        int position = index.find(offset);
+        return position < 0 ? -1 : index.indexes[position];
+    }
+
+    protected OffsetIndex getOffsetIndex() {
+        int currentVersion = version;
+        OffsetIndex index = offsetIndex;
+        if (index == null || index.version != currentVersion) {
+            index = new OffsetIndex(new ArrayList<>(tileRanges.values()), currentVersion);
+            offsetIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Parallel arrays of the tile ranges sorted by start offset.  Sequential reads usually hit the same or the next
+     * tile as the previous lookup, so those are checked before falling back to a binary search.
+     */
+    protected static class OffsetIndex {
+
+        protected final long[] starts;
+        protected final long[] lengths;
+        protected final int[] indexes;
+        // the greatest end of the ranges up to and including each position, to find ranges that contain later ones
+        protected final long[] maxEnds;
+        protected final TileRange[] ranges;
+        protected final int version;
+        protected int lastHit;
+
+        protected OffsetIndex(Iterable<TileRange> tileRanges, int version) {
+            this.version = version;
+            TileRange[] sorted = toArray(tileRanges);
+            Arrays.sort(sorted, Comparator.comparingLong(TileRange::getStart));
+            ranges = sorted;
+            starts = new long[sorted.length];
+            lengths = new long[sorted.length];
+            indexes = new int[sorted.length];
+            maxEnds = new long[sorted.length];
+            long maxEnd = Long.MIN_VALUE;
+            for (int i = 0; i < sorted.length; i++) {
+                starts[i] = sorted[i].getStart();
+                lengths[i] = sorted[i].getByteLength();
+                indexes[i] = sorted[i].getIndex();
+                maxEnd = Math.max(maxEnd, sorted[i].getEnd());
+                maxEnds[i] = maxEnd;
+            }
+        }
+
+        private static TileRange[] toArray(Iterable<TileRange> ranges) {
+            int count = 0;
+            for (TileRange range : ranges) {
+                count += range.getByteLength() > 0 ? 1 : 0;
             }
+            TileRange[] array = new TileRange[count];
+            int i = 0;
+            for (TileRange range : ranges) {
+                if (range.getByteLength() > 0) {
+                    array[i++] = range;
+                }
+            }
+            return array;
+        }
+
+        /**
+         * @return the position in the arrays of the range containing the offset, or -1
+         */
+        protected int find(long offset) {
+            int hint = lastHit;
+            if (contains(hint, offset) && (hint + 1 >= starts.length || starts[hint + 1] > offset)) {
+                return hint;
+            }
+            if (contains(hint + 1, offset) && (hint + 2 >= starts.length || starts[hint + 2] > offset)) {
+                lastHit = hint + 1;
+                return hint + 1;
+            }
+
+            // the last range starting at or before the offset
+            int low = 0;
+            int high = starts.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (starts[mid] <= offset) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            // ranges may overlap, e.g. the header and the first tile, so walk back while an earlier range could
+            // still contain the offset
+            for (int i = high; i >= 0 && maxEnds[i] > offset; i--) {
+                if (contains(i, offset)) {
+                    lastHit = i;
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean contains(int position, long offset) {
+            return position >= 0 && position < starts.length
+                    && offset >= starts[position] && offset < starts[position] + lengths[position];
         }
-        return -1;
     }
 
     public static class TileRange {
@@ -72,8 +221,14 @@ public class CogTileInfo {
         private final long end;
         private final long byteLength;
         private final int index;
+        private final int imageIndex;
 
         public TileRange(int index, long start, long byteLength) {
+            this(0, index, start, byteLength);
+        }
+
+        public TileRange(int imageIndex, int index, long start, long byteLength) {
+            this.imageIndex = imageIndex;
             this.index = index;
             this.start = start;
             this.byteLength = byteLength;
@@ -84,6 +239,10 @@ public class CogTileInfo {
             return index;
         }
 
+        public int getImageIndex() {
+            return imageIndex;
+        }
+
         public long getStart() {
             return start;
         }
@@ -98,7 +257,7 @@ public class CogTileInfo {
 
         @Override
         public String toString() {
-            return "index: " + index + " - start: " + start + " - byteLength: " + byteLength + " - end: " + end;
+            return "image: " + imageIndex + " - index: " + index + " - start: " + start + " - byteLength: " + byteLength + " - end: " + end;
         }
 
         @Override
@@ -113,7 +272,7 @@ public class CogTileInfo {
 
             TileRange that = (TileRange) o;
 
-            if (index != that.index || start != that.start || byteLength != that.byteLength || end != that.end) {
+            if (imageIndex != that.imageIndex || index != that.index || start != that.start || byteLength != that.byteLength || end != that.end) {
                 return false;
             }
 
@@ -123,9 +282,10 @@ public class CogTileInfo {
         @Override
         public int hashCode() {
             int result = Longs.hashCode(start);
-            result = 31 * result + (int)byteLength;
-            result = 31 * result + (int)end;
+            result = 31 * result + Longs.hashCode(byteLength);
+            result = 31 * result + Longs.hashCode(end);
             result = 31 * result + index;
+            result = 31 * result + imageIndex;
             return result;
         }
 
@@ -0,0 +1,259 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import it.geosolutions.imageioimpl.plugins.tiff.stream.CacheConfig;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Logger;
+
+/**
+ * RangeReader for local files.  Nothing needs to be fetched ahead of time: scattered tiles are read on demand with
+ * positional {@link FileChannel#read(ByteBuffer, long)} calls straight into the caller's array, while ranges of at
+ * least {@link #COG_FILE_MAP_THRESHOLD} bytes are memory mapped when they are requested, so large contiguous windows
+ * are served from the page cache without any read calls.  At most {@link #COG_FILE_MAP_BYTES} bytes stay mapped per
+ * reader; the least recently read regions are dropped first and unmapped once they are garbage collected.
+ */
+public class FileRangeReader implements RangeReader, Closeable {
+
+    // ranges of at least this many bytes are memory mapped. 0 disables memory mapping
+    public static final String COG_FILE_MAP_THRESHOLD = "cog.file.mapThreshold";
+    // maximum number of bytes kept mapped by a single reader
+    public static final String COG_FILE_MAP_BYTES = "cog.file.mapBytes";
+
+    private final static Logger LOGGER = Logger.getLogger(FileRangeReader.class.getName());
+
+    protected final Path path;
+    protected final FileChannel channel;
+    protected final long mapThreshold;
+    protected final long maxMappedBytes =
+            Long.parseLong(CacheConfig.getPropertyValue(COG_FILE_MAP_BYTES, Integer.toString(268435456)));
+    protected final ConcurrentSkipListMap<Long, MappedByteBuffer> mappedRegions = new ConcurrentSkipListMap<>();
+    // start positions of the mapped regions in access order, guarded by itself
+    protected final LinkedHashMap<Long, Integer> mappedOrder = new LinkedHashMap<>(16, 0.75f, true);
+    protected long mappedBytes;
+    protected long filesize;
+
+    public FileRangeReader(Path path) throws IOException {
+        this(path, Long.parseLong(CacheConfig.getPropertyValue(COG_FILE_MAP_THRESHOLD, Integer.toString(1048576))));
+    }
+
+    public FileRangeReader(Path path, long mapThreshold) throws IOException {
+        this.path = path;
+        this.mapThreshold = mapThreshold;
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        filesize = channel.size();
+    }
+
+    @Override
+    public byte[] readHeader(int headerByteLength) throws IOException {
+        LOGGER.fine("Reading header");
+        byte[] headerBytes = new byte[(int) Math.min(headerByteLength, filesize)];
+        read(0, ByteBuffer.wrap(headerBytes));
+        return headerBytes;
+    }
+
+    @Override
+    public void setHeaderByteLength(int headerByteLength) {
+        // bytes are read on demand, nothing is skipped
+    }
+
+    /**
+     * @return the last modified time and size of the file
+     */
+    @Override
+    public String getValidator() {
+        try {
+            return Files.getLastModifiedTime(path).toMillis() + "-" + Files.size(path);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isModified(String validator) {
+        return validator == null || !validator.equals(getValidator());
+    }
+
+    @Override
+    public long getFilesize() {
+        return filesize;
+    }
+
+    @Override
+    public void setFilesize(long filesize) {
+        this.filesize = filesize;
+    }
+
+    /**
+     * Maps the ranges that are large enough to be worth mapping.  Smaller ranges are read on demand.
+     */
+    @Override
+    public void readAsync(long[]... ranges) throws IOException {
+        if (mapThreshold <= 0) {
+            return;
+        }
+        for (long[] range : ranges) {
+            long length = Math.min(range[1] + 1, filesize) - range[0];
+            if (length >= mapThreshold && length <= Math.min(Integer.MAX_VALUE, maxMappedBytes)
+                    && getMappedRegion(range[0], (int) length) == null) {
+                LOGGER.fine("Mapping range " + range[0] + "-" + range[1] + " of " + path);
+                addMappedRegion(range[0], channel.map(FileChannel.MapMode.READ_ONLY, range[0], length));
+            }
+        }
+    }
+
+    @Override
+    public void readAsync(Collection<long[]> ranges) throws IOException {
+        readAsync(ranges.toArray(new long[][]{}));
+    }
+
+    @Override
+    public void readAsync(Collection<long[]> ranges, CompletableFuture<Void> cancellation) throws IOException {
+        if (cancellation != null && cancellation.isDone()) {
+            throw new IOException("Reading ranges from " + path + " was cancelled");
+        }
+        readAsync(ranges);
+    }
+
+    /**
+     * Reads are served on demand, so prefetching only maps the large ranges.
+     *
+     * @throws UncheckedIOException if a range cannot be mapped
+     */
+    @Override
+    public void prefetch(long[]... ranges) {
+        try {
+            readAsync(ranges);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to map ranges of " + path, e);
+        }
+    }
+
+    @Override
+    public void prefetch(Collection<long[]> ranges) {
+        prefetch(ranges.toArray(new long[][]{}));
+    }
+
+    @Override
+    public void prefetch(Collection<long[]> ranges, CompletableFuture<Void> cancellation) {
+        if (cancellation == null || !cancellation.isDone()) {
+            prefetch(ranges);
+        }
+    }
+
+    /**
+     * Copies bytes from a mapped region if one covers the requested range, otherwise reads them directly from the
+     * file into the destination array.
+     *
+     * @throws UncheckedIOException if the file cannot be read
+     */
+    @Override
+    public void readBytes(long position, byte[] dest, int offset, int length) {
+        Map.Entry<Long, MappedByteBuffer> region = getMappedRegion(position, length);
+        if (region != null) {
+            synchronized (mappedOrder) {
+                mappedOrder.get(region.getKey());
+            }
+            ByteBuffer view = region.getValue().duplicate();
+            view.position((int) (position - region.getKey()));
+            view.get(dest, offset, length);
+            return;
+        }
+        try {
+            read(position, ByteBuffer.wrap(dest, offset, length));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read " + length + " bytes at " + position + " from " + path, e);
+        }
+    }
+
+    @Override
+    public byte[] getBytes(long position, int length) {
+        byte[] bytes = new byte[length];
+        readBytes(position, bytes, 0, length);
+        return bytes;
+    }
+
+    protected void read(long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file " + path + " at " + position);
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Adds a mapped region and drops the least recently read regions until the mapped bytes fit in
+     * {@link #COG_FILE_MAP_BYTES}.  Dropped regions are unmapped once they are garbage collected.
+     */
+    protected void addMappedRegion(long start, MappedByteBuffer region) {
+        synchronized (mappedOrder) {
+            MappedByteBuffer previous = mappedRegions.put(start, region);
+            if (previous != null) {
+                mappedBytes -= previous.capacity();
+            }
+            mappedOrder.put(start, region.capacity());
+            mappedBytes += region.capacity();
+            Iterator<Map.Entry<Long, Integer>> eldest = mappedOrder.entrySet().iterator();
+            while (mappedBytes > maxMappedBytes && eldest.hasNext()) {
+                Map.Entry<Long, Integer> entry = eldest.next();
+                if (entry.getKey() == start) {
+                    continue;
+                }
+                LOGGER.fine("Dropping mapped region at " + entry.getKey() + " of " + path);
+                mappedRegions.remove(entry.getKey());
+                mappedBytes -= entry.getValue();
+                eldest.remove();
+            }
+        }
+    }
+
+    protected void clearMappedRegions() {
+        synchronized (mappedOrder) {
+            mappedRegions.clear();
+            mappedOrder.clear();
+            mappedBytes = 0;
+        }
+    }
+
+    /**
+     * @return the start position and mapped region that fully contains the requested range, or null
+     */
+    protected Map.Entry<Long, MappedByteBuffer> getMappedRegion(long position, int length) {
+        Map.Entry<Long, MappedByteBuffer> entry = mappedRegions.floorEntry(position);
+        if (entry != null && position + length <= entry.getKey() + entry.getValue().capacity()) {
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Reads are synchronous, so there is nothing in flight to cancel.  Mapped regions are released.
+     */
+    @Override
+    public void cancel() {
+        clearMappedRegions();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // mapped regions are unmapped once they are garbage collected
+        clearMappedRegions();
+        channel.close();
+    }
+}
@@ -0,0 +1,28 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+
+/**
+ * Creates {@link FileRangeReader} instances for file sources and URIs without a scheme.  The per-scheme property
+ * {@code cog.rangeReader.file.mapThreshold} overrides cog.file.mapThreshold.
+ */
+public class FileRangeReaderFactory implements RangeReaderFactory {
+
+    private static final Set<String> SCHEMES = Set.of("file");
+
+    @Override
+    public Set<String> getSchemes() {
+        return SCHEMES;
+    }
+
+    @Override
+    public RangeReader create(URI uri) throws IOException {
+        Path path = uri.getScheme() == null ? Paths.get(uri.getPath()) : Paths.get(uri);
+        String mapThreshold = RangeReaderRegistry.getProperty("file", "mapThreshold", null);
+        return mapThreshold == null ? new FileRangeReader(path) : new FileRangeReader(path, Long.parseLong(mapThreshold));
+    }
+}
@@ -0,0 +1,167 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import it.geosolutions.imageioimpl.plugins.tiff.stream.CacheConfig;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Registry of shared HttpClient instances.  Creating a client per stream means a new selector thread, a new connection
+ * pool and a new TLS handshake for every read.  Sharing clients lets steady state reads reuse warm connections and,
+ * with HTTP/2, multiplex many range requests over a single connection.
+ * <p>
+ * Clients are keyed by their configuration and, optionally, by host.
+ */
+public final class HttpClientRegistry {
+
+    // connect timeout in seconds
+    public static final String COG_HTTP_CONNECT_TIMEOUT = "cog.http.connectTimeout";
+
+    // HTTP version preferred by the shared clients, HTTP_2 or HTTP_1_1
+    public static final String COG_HTTP_VERSION = "cog.http.version";
+
+    // number of threads used by the shared clients. 0 uses the HttpClient default executor. ignored when
+    // cog.threads.virtual is enabled, in which case the clients run on virtual threads
+    public static final String COG_HTTP_EXECUTOR_THREADS = "cog.http.executorThreads";
+
+    // whether a separate client (and connection pool) should be kept per host
+    public static final String COG_HTTP_CLIENT_PER_HOST = "cog.http.clientPerHost";
+
+    // maximum number of idle HTTP/1.1 connections kept in the pool. 0 means unlimited.  opt-in: applies to every
+    // HttpClient in the JVM, see setJdkProperty
+    public static final String COG_HTTP_CONNECTION_POOL_SIZE = "cog.http.connectionPoolSize";
+
+    // time in seconds idle connections are kept alive.  opt-in: applies to every HttpClient in the JVM, see
+    // setJdkProperty
+    public static final String COG_HTTP_KEEP_ALIVE_TIMEOUT = "cog.http.keepAliveTimeout";
+
+    private static final Logger LOGGER = Logger.getLogger(HttpClientRegistry.class.getName());
+    private static final Map<ClientKey, HttpClient> CLIENTS = new ConcurrentHashMap<>();
+    private static volatile Executor executor;
+
+    static {
+        // the JDK reads these once, when the client implementation is first loaded
+        setJdkProperty("jdk.httpclient.connectionPoolSize", COG_HTTP_CONNECTION_POOL_SIZE);
+        setJdkProperty("jdk.httpclient.keepalive.timeout", COG_HTTP_KEEP_ALIVE_TIMEOUT);
+    }
+
+    private HttpClientRegistry() {
+    }
+
+    /**
+     * @param uri the source that will be read with the client
+     * @return the shared client for the source using the configured defaults
+     */
+    public static HttpClient getClient(URI uri) {
+        return getClient(uri,
+                HttpClient.Version.valueOf(CacheConfig.getPropertyValue(COG_HTTP_VERSION, HttpClient.Version.HTTP_2.name())),
+                Integer.parseInt(CacheConfig.getPropertyValue(COG_HTTP_CONNECT_TIMEOUT, "5")));
+    }
+
+    public static HttpClient getClient(URI uri, HttpClient.Version version, int connectTimeout) {
+        boolean perHost = Boolean.parseBoolean(CacheConfig.getPropertyValue(COG_HTTP_CLIENT_PER_HOST, "false"));
+        ClientKey key = new ClientKey(perHost ? uri.getHost() : null, version, connectTimeout);
+        return CLIENTS.computeIfAbsent(key, HttpClientRegistry::buildClient);
+    }
+
+    private static HttpClient buildClient(ClientKey key) {
+        LOGGER.fine("Creating shared HttpClient for " + key);
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(key.version)
+                .connectTimeout(Duration.ofSeconds(key.connectTimeout))
+                .followRedirects(HttpClient.Redirect.NORMAL);
+        Executor clientExecutor = getExecutor();
+        if (clientExecutor != null) {
+            builder.executor(clientExecutor);
+        }
+        return builder.build();
+    }
+
+    private static Executor getExecutor() {
+        if (CogExecutors.isVirtual()) {
+            return CogExecutors.getExecutor();
+        }
+        int threads = Integer.parseInt(CacheConfig.getPropertyValue(COG_HTTP_EXECUTOR_THREADS, "0"));
+        if (threads <= 0) {
+            return null;
+        }
+        if (executor == null) {
+            synchronized (HttpClientRegistry.class) {
+                if (executor == null) {
+                    AtomicInteger count = new AtomicInteger();
+                    executor = Executors.newFixedThreadPool(threads, runnable -> {
+                        Thread thread = new Thread(runnable, "cog-http-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * The connection pool of the JDK client can only be tuned through system properties, which apply to every
+     * HttpClient in the JVM, including those of the application hosting this library, and are only read when the
+     * client implementation is first loaded.  The property is therefore only set when the cog setting was configured
+     * explicitly and the JDK property has not been set already, and the change is logged.
+     */
+    private static void setJdkProperty(String jdkKey, String cogKey) {
+        String value = CacheConfig.getPropertyValue(cogKey, null);
+        if (value == null) {
+            return;
+        }
+        if (System.getProperty(jdkKey) != null) {
+            LOGGER.info("Ignoring " + cogKey + "=" + value + " as " + jdkKey + " is already set to "
+                    + System.getProperty(jdkKey));
+            return;
+        }
+        LOGGER.info("Setting " + jdkKey + "=" + value + " from " + cogKey + ", which applies to every HttpClient in "
+                + "the JVM");
+        System.setProperty(jdkKey, value);
+    }
+
+    private static class ClientKey {
+
+        private final String host;
+        private final HttpClient.Version version;
+        private final int connectTimeout;
+
+        ClientKey(String host, HttpClient.Version version, int connectTimeout) {
+            this.host = host;
+            this.version = version;
+            this.connectTimeout = connectTimeout;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            ClientKey that = (ClientKey) o;
+            return connectTimeout == that.connectTimeout && Objects.equals(host, that.host) && version == that.version;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(host, version, connectTimeout);
+        }
+
+        @Override
+        public String toString() {
+            return "host: " + (host == null ? "*" : host) + " - version: " + version
+                    + " - connect timeout: " + connectTimeout + "s";
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Thrown when a range request is answered with an unexpected HTTP status.
+ */
+public class HttpRangeException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    public HttpRangeException(URI uri, int statusCode) {
+        super("Unexpected HTTP status " + statusCode + " reading " + uri);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+}
@@ -1,6 +1,10 @@
 package it.geosolutions.imageioimpl.plugins.tiff;
 
+import it.geosolutions.imageioimpl.plugins.tiff.stream.CacheConfig;
+
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URL;
 import java.net.http.HttpClient;
@@ -11,11 +15,24 @@ import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static java.net.http.HttpClient.Version.HTTP_2;
-
 /**
  * @author joshfix
  * Created on 2019-08-21
@@ -24,13 +41,65 @@ public class HttpRangeReader implements RangeReader {
 
     protected URI uri;
     protected HttpClient client;
-    protected ByteBuffer buffer;
+    protected RangeRequestScheduler scheduler = RangeRequestScheduler.DEFAULT;
+    protected RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+    protected LatencyTracker latencyTracker;
+    protected SparsePageStore store = new SparsePageStore();
+    // one future per active read, completed to cancel everything that read has in flight, and the ranges it reads
+    protected final Map<CompletableFuture<Void>, long[][]> cancellations = new ConcurrentHashMap<>();
+    // ranges started by prefetch that have not been written yet, keyed by start position
+    protected final ConcurrentSkipListMap<Long, PendingRange> pendingRanges = new ConcurrentSkipListMap<>();
 
-    protected int timeout = 5;
-    protected int filesize = -1;
+    protected int readTimeout = Integer.parseInt(CacheConfig.getPropertyValue(COG_HTTP_READ_TIMEOUT, "60"));
+    protected int requestTimeout = Integer.parseInt(CacheConfig.getPropertyValue(COG_HTTP_REQUEST_TIMEOUT, "30"));
+    protected boolean hedge = Boolean.parseBoolean(CacheConfig.getPropertyValue(COG_HTTP_HEDGE, "false"));
+    protected double hedgePercentile = Double.parseDouble(CacheConfig.getPropertyValue(COG_HTTP_HEDGE_PERCENTILE, "0.95"));
+    protected long hedgeMinDelay = Long.parseLong(CacheConfig.getPropertyValue(COG_HTTP_HEDGE_MIN_DELAY, "50"));
+    protected long filesize = -1;
+    protected String etag;
+    protected String lastModified;
     protected int headerByteLength = 16384;
+    protected long maxRangeSize = Long.parseLong(CacheConfig.getPropertyValue(COG_HTTP_MAX_RANGE_SIZE, "0"));
+    protected int maxSubRanges = Integer.parseInt(CacheConfig.getPropertyValue(COG_HTTP_MAX_SUB_RANGES, "8"));
+    protected volatile boolean multiRange = Boolean.parseBoolean(CacheConfig.getPropertyValue(COG_HTTP_MULTI_RANGE, "false"));
+    protected long batchWindow = Long.parseLong(CacheConfig.getPropertyValue(COG_HTTP_BATCH_WINDOW, "0"));
+    protected int maxRangesPerRequest =
+            Integer.parseInt(CacheConfig.getPropertyValue(COG_HTTP_MAX_RANGES_PER_REQUEST, "32"));
+
+    // maximum time in seconds to wait for all ranges of a single read to complete
+    public static final String COG_HTTP_READ_TIMEOUT = "cog.http.readTimeout";
+
+    // maximum time in seconds for a single range request before it fails (and may be retried)
+    public static final String COG_HTTP_REQUEST_TIMEOUT = "cog.http.requestTimeout";
+
+    // whether a duplicate request should be issued when a request takes longer than the hedge percentile latency
+    public static final String COG_HTTP_HEDGE = "cog.http.hedge";
+
+    // latency percentile, between 0 and 1, after which a request is hedged
+    public static final String COG_HTTP_HEDGE_PERCENTILE = "cog.http.hedgePercentile";
+
+    // minimum delay in milliseconds before a request is hedged
+    public static final String COG_HTTP_HEDGE_MIN_DELAY = "cog.http.hedgeMinDelay";
+
+    // ranges larger than this many bytes are split into concurrent sub-range requests. 0 disables splitting
+    public static final String COG_HTTP_MAX_RANGE_SIZE = "cog.http.maxRangeSize";
+
+    // maximum number of sub-range requests a single range may be split into
+    public static final String COG_HTTP_MAX_SUB_RANGES = "cog.http.maxSubRanges";
+
+    // whether scattered ranges should be requested together in multipart/byteranges requests
+    public static final String COG_HTTP_MULTI_RANGE = "cog.http.multiRange";
+
+    // maximum number of ranges listed in a single multi-range request
+    public static final String COG_HTTP_MAX_RANGES_PER_REQUEST = "cog.http.maxRangesPerRequest";
+
+    // milliseconds during which single range requests for the same source are collected and merged. 0 disables batching
+    public static final String COG_HTTP_BATCH_WINDOW = "cog.http.batchWindow";
 
     public static final String CONTENT_RANGE_HEADER = "content-range";
+    public static final String CONTENT_TYPE_HEADER = "content-type";
+    public static final String ETAG_HEADER = "etag";
+    public static final String LAST_MODIFIED_HEADER = "last-modified";
     private final static Logger LOGGER = Logger.getLogger(HttpRangeReader.class.getName());
 
     public HttpRangeReader(String url) {
@@ -43,98 +112,558 @@ public class HttpRangeReader implements RangeReader {
 
     public HttpRangeReader(URI uri) {
         this.uri = uri;
-        client = HttpClient.newBuilder()
-                .version(HTTP_2)
-                .connectTimeout(Duration.ofSeconds(timeout))
-                .followRedirects(HttpClient.Redirect.NORMAL)
-                .build();
+        client = HttpClientRegistry.getClient(uri);
+        latencyTracker = LatencyTracker.forHost(uri.getHost());
     }
 
     @Override
-    public byte[] readHeader(int headerByteLength) {
+    public byte[] readHeader(int headerByteLength) throws IOException {
         LOGGER.fine("Reading header");
-        this.headerByteLength = headerByteLength;
-        byte[] headerBytes = read(0, headerByteLength);
-        writeValue(0, headerBytes);
+        byte[] headerBytes = read(0, headerByteLength - 1);
+        this.headerByteLength = headerBytes.length;
         return headerBytes;
     }
 
+    @Override
     public void setHeaderByteLength(int headerByteLength) {
         this.headerByteLength = headerByteLength;
     }
 
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public void setRequestTimeout(int requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    public void setMaxRangeSize(long maxRangeSize) {
+        this.maxRangeSize = maxRangeSize;
+    }
+
+    public void setMaxSubRanges(int maxSubRanges) {
+        this.maxSubRanges = maxSubRanges;
+    }
+
+    public void setScheduler(RangeRequestScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public void setHedge(boolean hedge) {
+        this.hedge = hedge;
+    }
+
+    public void setMultiRange(boolean multiRange) {
+        this.multiRange = multiRange;
+    }
+
+    public void setBatchWindow(long batchWindow) {
+        this.batchWindow = batchWindow;
+    }
+
+    public void setMaxRangesPerRequest(int maxRangesPerRequest) {
+        this.maxRangesPerRequest = maxRangesPerRequest;
+    }
+
     @Override
-    public void setFilesize(int filesize) {
+    public void setFilesize(long filesize) {
         this.filesize = filesize;
-        buffer = ByteBuffer.allocate(filesize);
     }
     @Override
-    public int getFilesize() {
+    public long getFilesize() {
         return filesize;
     }
 
+    /**
+     * Waits for any prefetched range overlapping the requested bytes before copying them.
+     *
+     * @throws UncheckedIOException if a prefetched range overlapping the requested bytes failed or was cancelled, or
+     * any of the bytes has not been fetched
+     */
     @Override
-    public byte[] getBytes() {
-        return buffer.array();
+    public void readBytes(long position, byte[] dest, int offset, int length) {
+        awaitPending(position, position + length);
+        store.read(position, dest, offset, length);
     }
 
     @Override
-    public void readAsync(Collection<long[]> ranges) {
-        readAsync(ranges.toArray(new long[][]{}));
+    public byte[] getBytes(long position, int length) {
+        awaitPending(position, position + length);
+        return store.read(position, length);
     }
 
+    /**
+     * @return the ETag returned with the header response, or null if the server did not send one
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * @return the ETag of the source or, if the server did not send one, its Last-Modified date
+     */
     @Override
-    public void readAsync(long[]... ranges) {
-        ranges = reconcileRanges(ranges);
+    public String getValidator() {
+        return etag != null ? etag : lastModified;
+    }
 
-        Instant start = Instant.now();
-        Map<Long, CompletableFuture<byte[]>> futureResults = new HashMap<>(ranges.length);
+    /**
+     * Sends a conditional request for the first byte of the source.  A 304 response means the source is unchanged.
+     * Servers that ignore the condition are checked by comparing the validator they return.
+     */
+    @Override
+    public boolean isModified(String validator) throws IOException {
+        if (validator == null) {
+            return true;
+        }
+        HttpRequest.Builder builder = newRequestBuilder("bytes=0-0");
+        if (validator.startsWith("\"") || validator.startsWith("W/")) {
+            builder.header("If-None-Match", validator);
+        } else {
+            builder.header("If-Modified-Since", validator);
+        }
 
-        for (int i = 0; i < ranges.length; i++) {
-            HttpRequest request = buildRequest(ranges[i]);
-            futureResults.put(ranges[i][0], getAsync(request));
+        HttpResponse<Void> response = get(builder.build(), HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() == 304) {
+            return false;
         }
+        try {
+            checkStatus(response);
+        } catch (CompletionException e) {
+            throw toIOException(e);
+        }
+        readValidators(response);
+        return !validator.equals(getValidator());
+    }
+
+    public SparsePageStore getStore() {
+        return store;
+    }
+
+    @Override
+    public void readAsync(Collection<long[]> ranges) throws IOException {
+        readAsync(ranges, null);
+    }
 
-        awaitCompletion(futureResults);
+    @Override
+    public void readAsync(long[]... ranges) throws IOException {
+        readAsync(Arrays.asList(ranges), null);
+    }
+
+    @Override
+    public void readAsync(Collection<long[]> requestedRanges, CompletableFuture<Void> readCancellation)
+            throws IOException {
+        long[][] ranges = prepareRanges(requestedRanges);
+        clearFailedRanges();
+
+        Instant start = Instant.now();
+        CompletableFuture<Void> cancellation = newCancellation(ranges, readCancellation);
+
+        try {
+            List<CompletableFuture<Void>> futures = submitRanges(ranges, cancellation);
+            awaitCompletion(CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[]{})), cancellation);
+        } finally {
+            cancellations.remove(cancellation);
+        }
         Instant end = Instant.now();
         LOGGER.fine("Time to read all ranges: " + Duration.between(start, end));
     }
 
-    protected void writeValue(int position, byte[] bytes) {
-        buffer.position(position);
+    /**
+     * Sends the requests for the ranges and returns immediately.  Each range is tracked until its bytes have been
+     * written, and {@link #readBytes} waits only for the ranges that overlap the bytes it is asked for, so the caller
+     * can decode the first tiles while later ones are still on the wire.
+     */
+    @Override
+    public void prefetch(long[]... ranges) {
+        prefetch(Arrays.asList(ranges), null);
+    }
+
+    @Override
+    public void prefetch(Collection<long[]> ranges) {
+        prefetch(ranges, null);
+    }
+
+    @Override
+    public void prefetch(Collection<long[]> requestedRanges, CompletableFuture<Void> readCancellation) {
+        long[][] ranges = prepareRanges(requestedRanges);
+        clearFailedRanges();
+        if (ranges.length == 0) {
+            return;
+        }
+
+        Instant start = Instant.now();
+        CompletableFuture<Void> cancellation = newCancellation(ranges, readCancellation);
+        List<CompletableFuture<Void>> futures = submitRanges(ranges, cancellation);
+        for (int i = 0; i < ranges.length; i++) {
+            long rangeStart = ranges[i][0];
+            PendingRange pending = new PendingRange(ranges[i][1], futures.get(i), cancellation);
+            pendingRanges.merge(rangeStart, pending, PendingRange::merge);
+            pending.completion.thenRun(() -> pendingRanges.remove(rangeStart, pending));
+        }
+        cancellation.thenRun(() -> futures.forEach(future -> future.cancel(true)));
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[]{})).whenComplete((value, throwable) -> {
+            cancellations.remove(cancellation);
+            LOGGER.fine("Time to read all prefetched ranges: " + Duration.between(start, Instant.now()));
+        });
+    }
+
+    /**
+     * Sends the requests for the ranges, batching them into multi-range requests if enabled.
+     *
+     * @return a future for each range, completed once its bytes have been written to the page store
+     */
+    protected List<CompletableFuture<Void>> submitRanges(long[][] ranges, CompletableFuture<Void> cancellation) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(ranges.length);
+        if (multiRange && ranges.length > 1) {
+            int batchSize = Math.max(1, maxRangesPerRequest);
+            for (int i = 0; i < ranges.length; i += batchSize) {
+                int batchEnd = Math.min(ranges.length, i + batchSize);
+                CompletableFuture<Void> batch =
+                        readMultiRangeAsync(Arrays.copyOfRange(ranges, i, batchEnd), cancellation);
+                for (int j = i; j < batchEnd; j++) {
+                    futures.add(batch);
+                }
+            }
+        } else {
+            for (long[] range : ranges) {
+                futures.add(readRangeAsync(range, cancellation));
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Blocks until every prefetched range overlapping the given bytes has been written.
+     *
+     * @param start the first byte position
+     * @param end the position after the last byte
+     */
+    protected void awaitPending(long start, long end) {
+        if (pendingRanges.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<Long, PendingRange> entry : pendingRanges.headMap(end).entrySet()) {
+            PendingRange pending = entry.getValue();
+            if (pending.end >= start) {
+                try {
+                    await(pending.completion, pending.cancellation);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                // merged prefetches are not removed when their requests complete
+                pendingRanges.remove(entry.getKey(), pending);
+            }
+        }
+    }
+
+    /**
+     * Failed and cancelled prefetches are kept so that reading their bytes reports the failure.  They are dropped once
+     * the bytes are requested again.
+     */
+    protected void clearFailedRanges() {
+        pendingRanges.values().removeIf(pending -> pending.completion.isCompletedExceptionally());
+    }
+
+    /**
+     * Cancels every read in progress.  Queued requests are dropped, in-flight exchanges and body transfers are
+     * cancelled, and the pages holding the ranges of each cancelled read are released.
+     */
+    @Override
+    public void cancel() {
+        List<CompletableFuture<Void>> active = new ArrayList<>(cancellations.keySet());
+        if (active.isEmpty()) {
+            // nothing in flight. the fetched bytes may still be in use by the decoder, so they are left alone
+            return;
+        }
+        LOGGER.fine("Cancelling " + active.size() + " read(s) from " + uri);
+        active.forEach(cancellation -> cancellation.complete(null));
+    }
+
+    /**
+     * Registers a read of the given ranges.  Once the returned future completes, because the read was cancelled or
+     * timed out, the read stops and the pages holding its ranges are released.  Reads that finish are unregistered
+     * without releasing anything.
+     *
+     * @param readCancellation completed by the caller to cancel the read, may be null
+     */
+    protected CompletableFuture<Void> newCancellation(long[][] ranges, CompletableFuture<Void> readCancellation) {
+        CompletableFuture<Void> cancellation = new CompletableFuture<>();
+        cancellations.put(cancellation, ranges);
+        cancellation.thenRun(() -> release(cancellation));
+        if (readCancellation != null) {
+            readCancellation.whenComplete((value, throwable) -> cancellation.complete(null));
+        }
+        return cancellation;
+    }
+
+    /**
+     * Releases the pages written only by a cancelled read.  Ranges overlapping those of another read in progress are
+     * kept, as are pages also written by a read that has completed and pages shared with bytes outside the read's
+     * ranges, e.g. the header.
+     */
+    protected void release(CompletableFuture<Void> cancellation) {
+        long[][] ranges = cancellations.remove(cancellation);
+        if (ranges == null) {
+            return;
+        }
+        for (long[] range : ranges) {
+            boolean shared = cancellations.values().stream().flatMap(Arrays::stream)
+                    .anyMatch(other -> other[0] <= range[1] && other[1] >= range[0]);
+            if (!shared) {
+                store.release(range[0], range[1], cancellation);
+            }
+        }
+    }
+
+    protected void writeValue(long position, byte[] bytes) {
         try {
-            buffer.put(bytes);
+            store.write(position, bytes);
         } catch (Exception e) {
-            LOGGER.severe("Error writing bytes to ByteBuffer for source " + uri);
+            LOGGER.severe("Error writing bytes to page store for source " + uri);
         }
     }
 
     /**
-     * Blocks until all ranges have been read and written to the ByteBuffer
-     * @param futureResults
+     * Reconciles the requested ranges with the bytes already held and splits the rest into request-sized ranges.  When
+     * a batch window is set, splitting is left to the batcher so it happens after the ranges have been merged.
      */
-    protected void awaitCompletion(Map<Long, CompletableFuture<byte[]>> futureResults) {
-        boolean stillWaiting = true;
-        List<Long> completed = new ArrayList<>(futureResults.size());
-        while (stillWaiting) {
-            boolean allDone = true;
-            for (Map.Entry<Long, CompletableFuture<byte[]>> entry : futureResults.entrySet()) {
-                long key = entry.getKey();
-                CompletableFuture<byte[]> value = entry.getValue();
-                if (value.isDone()) {
-                    if (!completed.contains(key)) {
-                        try {
-                            writeValue((int) key, value.get());
-                            completed.add(key);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
+    protected long[][] prepareRanges(Collection<long[]> requestedRanges) {
+        long[][] ranges = reconcileRanges(requestedRanges.toArray(new long[][]{}));
+        return batchWindow > 0 ? ranges : splitRanges(ranges);
+    }
+
+    /**
+     * Requests a single range.  The body is streamed into the page store as it arrives.  When a batch window is set,
+     * the range is merged with the ranges requested for the same source by other readers during the window.
+     *
+     * @param range
+     * @return
+     */
+    protected CompletableFuture<Void> readRangeAsync(long[] range, CompletableFuture<Void> cancellation) {
+        if (batchWindow > 0) {
+            return RangeRequestBatcher.submit(getBatchKey(), this, range, batchWindow, cancellation);
+        }
+        return readRangeAsync(range, store, cancellation);
+    }
+
+    /**
+     * A batch is sent through the reader that started it, so ranges are only batched with those of readers of the same
+     * version of the source that build and send their requests the same way.
+     *
+     * @return the key identifying the source, its validator and the configuration requests are sent with
+     */
+    protected List<Object> getBatchKey() {
+        return Arrays.asList(getClass(), uri, getValidator(), client, scheduler, retryPolicy, requestTimeout,
+                maxRangeSize, maxSubRanges);
+    }
+
+    /**
+     * Requests a single range, streaming the body into the given page store.
+     */
+    protected CompletableFuture<Void> readRangeAsync(long[] range, SparsePageStore target,
+                                                     CompletableFuture<Void> cancellation) {
+        return send(buildRequest(range),
+                responseInfo -> rangeBodySubscriber(responseInfo, range, target, cancellation), cancellation)
+                .thenAccept(this::checkStatus);
+    }
+
+    /**
+     * Chooses where the body of a single range response is written.  Error bodies are discarded so they never end up
+     * in the page store.
+     *
+     * @param responseInfo
+     * @param range the requested inclusive start and end positions
+     * @param target the page store the body is written to
+     * @param cancellation completed when the read is cancelled, may be null
+     * @return a subscriber whose body is the number of bytes written to the page store
+     */
+    protected HttpResponse.BodySubscriber<Long> rangeBodySubscriber(HttpResponse.ResponseInfo responseInfo,
+                                                                    long[] range,
+                                                                    SparsePageStore target,
+                                                                    CompletableFuture<Void> cancellation) {
+        switch (responseInfo.statusCode()) {
+            case 206:
+                long[] contentRange = MultipartByteRangesSubscriber.parseContentRange(
+                        responseInfo.headers().firstValue(CONTENT_RANGE_HEADER).orElse(null));
+                return new PageStoreBodySubscriber(target, contentRange != null ? contentRange[0] : range[0],
+                        cancellation);
+            case 200:
+                // a server that ignores the range header answers with the entire file. only the requested window is
+                // kept and the transfer is stopped once the body has passed it
+                return new PageStoreBodySubscriber(target, 0, range[0], range[1], cancellation);
+            default:
+                return HttpResponse.BodySubscribers.replacing(0L);
+        }
+    }
+
+    /**
+     * Requests several ranges in a single multipart/byteranges request.  Each part is parsed and written into place as
+     * it streams in.  If the server ignores the extra ranges, answering with a single part or with the whole file,
+     * any ranges that were not received are requested individually instead.
+     *
+     * @param ranges
+     * @return
+     */
+    protected CompletableFuture<Void> readMultiRangeAsync(long[][] ranges, CompletableFuture<Void> cancellation) {
+        if (ranges.length == 1) {
+            return readRangeAsync(ranges[0], cancellation);
+        }
+        return send(buildRequest(ranges), responseInfo -> multiRangeBodySubscriber(responseInfo, cancellation),
+                cancellation)
+                .handle((response, throwable) -> {
+                    if (throwable != null && cancellation.isDone()) {
+                        throw new CompletionException(RetryPolicy.unwrap(throwable));
                     }
-                } else {
-                    allDone = false;
+                    if (throwable != null) {
+                        LOGGER.log(Level.FINE, "Multi-range request failed, falling back to single ranges", throwable);
+                        return Arrays.asList(ranges);
+                    }
+                    return getMissingRanges(ranges, response.body());
+                })
+                .thenCompose(missingRanges -> {
+                    if (missingRanges.isEmpty()) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    LOGGER.fine("Requesting " + missingRanges.size() + " range(s) not returned by multi-range request");
+                    return CompletableFuture.allOf(missingRanges.stream()
+                            .map(range -> readRangeAsync(range, cancellation))
+                            .toArray(CompletableFuture<?>[]::new));
+                });
+    }
+
+    /**
+     * Chooses how to consume a multi-range response based on its status and content type.
+     *
+     * @param responseInfo
+     * @return a subscriber whose body is the list of ranges that were written to the page store
+     */
+    protected HttpResponse.BodySubscriber<List<long[]>> multiRangeBodySubscriber(HttpResponse.ResponseInfo responseInfo,
+                                                                                 CompletableFuture<Void> cancellation) {
+        if (responseInfo.statusCode() == 206) {
+            HttpHeaders headers = responseInfo.headers();
+            String boundary = MultipartByteRangesSubscriber.getBoundary(
+                    headers.firstValue(CONTENT_TYPE_HEADER).orElse(null));
+            if (boundary != null) {
+                return new MultipartByteRangesSubscriber(boundary, store, cancellation);
+            }
+
+            // the server coalesced the request into a single part
+            long[] range = MultipartByteRangesSubscriber.parseContentRange(
+                    headers.firstValue(CONTENT_RANGE_HEADER).orElse(null));
+            if (range != null) {
+                return HttpResponse.BodySubscribers.mapping(new PageStoreBodySubscriber(store, range[0], cancellation),
+                        written -> Collections.singletonList(range));
+            }
+        }
+
+        // the server answered with the entire file (or an error). stop the transfer and, unless this was a transient
+        // error that will be retried, disable multi-range requests for this source
+        if (!retryPolicy.isRetryable(responseInfo.statusCode())) {
+            LOGGER.fine("Server answered multi-range request with status " + responseInfo.statusCode()
+                    + ", disabling multi-range requests for " + uri);
+            multiRange = false;
+        }
+        return new HttpResponse.BodySubscriber<List<long[]>>() {
+            @Override
+            public CompletableFuture<List<long[]>> getBody() {
+                return CompletableFuture.completedFuture(Collections.emptyList());
+            }
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.cancel();
+            }
+
+            @Override
+            public void onNext(List<ByteBuffer> item) {
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        };
+    }
+
+    /**
+     * @return the requested ranges that are not fully contained in any of the received ranges
+     */
+    protected List<long[]> getMissingRanges(long[][] requestedRanges, List<long[]> receivedRanges) {
+        List<long[]> missingRanges = new ArrayList<>();
+        for (long[] requested : requestedRanges) {
+            boolean received = false;
+            for (long[] range : receivedRanges) {
+                if (range[0] <= requested[0] && range[1] >= requested[1]) {
+                    received = true;
+                    break;
                 }
             }
-            stillWaiting = !allDone;
+            if (!received) {
+                missingRanges.add(requested);
+            }
+        }
+        return missingRanges;
+    }
+
+    /**
+     * Blocks until all ranges have been read and written to the page store, or until the read timeout expires
+     * @param completion future that completes once every range has been written
+     * @param cancellation completed when the read is cancelled, or by this method when the read times out
+     */
+    protected void awaitCompletion(CompletableFuture<Void> completion,
+                                   CompletableFuture<Void> cancellation) throws IOException {
+        cancellation.whenComplete((value, throwable) -> completion.cancel(true));
+        await(completion, cancellation);
+    }
+
+    /**
+     * Blocks until the future completes or the read timeout expires, cancelling the read if it times out or the
+     * thread is interrupted.
+     */
+    protected void await(CompletableFuture<Void> completion, CompletableFuture<Void> cancellation) throws IOException {
+        try {
+            completion.get(readTimeout, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            // stop the outstanding requests rather than letting them run to completion in the background
+            cancellation.complete(null);
+            throw new IOException("Timed out after " + readTimeout + "s waiting for ranges from " + uri);
+        } catch (CancellationException e) {
+            throw new IOException("Reading ranges from " + uri + " was cancelled");
+        } catch (ExecutionException e) {
+            if (cancellation.isDone()) {
+                throw new IOException("Reading ranges from " + uri + " was cancelled", RetryPolicy.unwrap(e));
+            }
+            throw toIOException(e);
+        } catch (InterruptedException e) {
+            cancellation.complete(null);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for ranges from " + uri);
+        }
+    }
+
+    protected IOException toIOException(Throwable throwable) {
+        Throwable cause = RetryPolicy.unwrap(throwable);
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        return new IOException("Error reading ranges from " + uri, cause);
+    }
+
+    /**
+     * @throws CompletionException wrapping an HttpRangeException if the response is neither 200 nor 206
+     */
+    protected void checkStatus(HttpResponse<?> response) {
+        int statusCode = response.statusCode();
+        if (statusCode != 200 && statusCode != 206) {
+            throw new CompletionException(new HttpRangeException(uri, statusCode));
         }
     }
 
@@ -158,15 +687,10 @@ public class HttpRangeReader implements RangeReader {
                 } else {
                     // this range starts inside the header range, but ends outside of it.
                     // add a new range that starts at the end of the header range
-                    long[] newRange = new long[]{headerByteLength + 1, ranges[i][1]};
-
-                    if (newRange[0] >= newRange[1]) {
-                        // TODO this can happen because of the way the header is added to CogTileInfo -- needs to be fixed
-                        continue;
-                    }
+                    long[] newRange = new long[]{headerByteLength, ranges[i][1]};
                     newRanges.add(newRange);
                     LOGGER.fine("Modified range " + ranges[i][0] + "-" + ranges[i][1]
-                            + " to " + (headerByteLength + 1) + "-" + ranges[i][1] + " as it overlaps with data previously"
+                            + " to " + headerByteLength + "-" + ranges[i][1] + " as it overlaps with data previously"
                             + " read in the header request");
                 }
             } else {
@@ -183,58 +707,384 @@ public class HttpRangeReader implements RangeReader {
         }
     }
 
+    /**
+     * Splits ranges larger than the max range size into sub-ranges that are requested concurrently.  Because every
+     * body is written to its own position in the page store, the sub-ranges reassemble without any extra work.  The
+     * number of sub-ranges per range is capped so a very large read still produces a bounded number of requests.
+     *
+     * @param ranges
+     * @return
+     */
+    protected long[][] splitRanges(long[][] ranges) {
+        if (maxRangeSize <= 0) {
+            return ranges;
+        }
+        List<long[]> newRanges = new ArrayList<>(ranges.length);
+        for (long[] range : ranges) {
+            long length = range[1] - range[0] + 1;
+            if (length <= maxRangeSize) {
+                newRanges.add(range);
+                continue;
+            }
+            int subRanges = (int) Math.max(1, Math.min(maxSubRanges, (length + maxRangeSize - 1) / maxRangeSize));
+            long subRangeSize = (length + subRanges - 1) / subRanges;
+            for (long start = range[0]; start <= range[1]; start += subRangeSize) {
+                newRanges.add(new long[]{start, Math.min(start + subRangeSize - 1, range[1])});
+            }
+            LOGGER.fine("Split range " + range[0] + "-" + range[1] + " into " + subRanges + " sub-range requests");
+        }
+        return newRanges.toArray(new long[][]{});
+    }
+
     protected HttpRequest buildRequest(long[] range) {
         LOGGER.fine("Building request for range " + range[0] + '-' + range[1] + " to " + uri.toString());
+        return buildRequest("bytes=" + range[0] + "-" + range[1]);
+    }
+
+    protected HttpRequest buildRequest(long[][] ranges) {
+        StringBuilder rangeHeader = new StringBuilder("bytes=");
+        for (int i = 0; i < ranges.length; i++) {
+            if (i > 0) {
+                rangeHeader.append(',');
+            }
+            rangeHeader.append(ranges[i][0]).append('-').append(ranges[i][1]);
+        }
+        LOGGER.fine("Building multi-range request for " + ranges.length + " ranges to " + uri.toString());
+        return buildRequest(rangeHeader.toString());
+    }
+
+    /**
+     * @param rangeHeader the value of the range header, e.g. bytes=0-1023
+     * @return
+     */
+    protected HttpRequest buildRequest(String rangeHeader) {
+        return newRequestBuilder(rangeHeader).build();
+    }
+
+    protected HttpRequest.Builder newRequestBuilder(String rangeHeader) {
         return HttpRequest.newBuilder()
                 .GET()
                 .uri(uri)
+                .timeout(Duration.ofSeconds(requestTimeout))
                 .header("Accept", "*/*")
-                .header("range", "bytes=" + range[0] + "-" + range[1])
-                .build();
+                .header("range", rangeHeader);
     }
 
-    protected CompletableFuture<byte[]> getAsync(HttpRequest request) {
-        return client
-                .sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
-                .thenApply(HttpResponse::body);
+    /**
+     * Sends a request, retrying server errors, throttling responses and I/O failures according to the retry policy.
+     *
+     * @param request
+     * @param bodyHandler
+     * @return
+     */
+    protected <T> CompletableFuture<HttpResponse<T>> send(HttpRequest request,
+                                                          HttpResponse.BodyHandler<T> bodyHandler,
+                                                          CompletableFuture<Void> cancellation) {
+        return send(request, bodyHandler, cancellation, 1);
     }
 
-    protected byte[] read(long start, long end) {
-        byte[] bytes = get(buildRequest(new long[]{start, end}));
-        writeValue((int) start, bytes);
-        return bytes;
+    protected <T> CompletableFuture<HttpResponse<T>> send(HttpRequest request,
+                                                          HttpResponse.BodyHandler<T> bodyHandler,
+                                                          CompletableFuture<Void> cancellation,
+                                                          int attempt) {
+        return sendHedged(request, bodyHandler, cancellation).handle((response, throwable) -> {
+            boolean retryable = throwable != null
+                    ? retryPolicy.isRetryable(throwable) : retryPolicy.isRetryable(response.statusCode());
+            if (retryable && retryPolicy.shouldRetry(attempt) && !cancellation.isDone()) {
+                long delay = retryPolicy.getDelayMillis(attempt);
+                LOGGER.fine("Retrying request to " + uri + " in " + delay + "ms after attempt " + attempt + " failed"
+                        + (throwable != null ? ": " + RetryPolicy.unwrap(throwable) : " with status " + response.statusCode()));
+                return CompletableFuture
+                        .runAsync(() -> {}, CogExecutors.delayedExecutor(delay, TimeUnit.MILLISECONDS))
+                        .thenCompose(ignored -> send(request, bodyHandler, cancellation, attempt + 1));
+            }
+            return throwable != null
+                    ? CompletableFuture.<HttpResponse<T>>failedFuture(RetryPolicy.unwrap(throwable))
+                    : CompletableFuture.completedFuture(response);
+        }).thenCompose(Function.identity());
     }
 
     /**
-     * Blocking request used to read the header
+     * Sends a request and, when hedging is enabled, sends a duplicate if no response has arrived once the configured
+     * latency percentile for the host has elapsed.  Whichever request succeeds first wins, and the other one is
+     * cancelled so it stops downloading.  An attempt failing with an exception or a retryable status, e.g. 503, does
+     * not win, so the other attempt can still complete; the request only fails once every attempt has failed.
+     *
      * @param request
+     * @param bodyHandler
      * @return
      */
-    protected byte[] get(HttpRequest request) {
+    protected <T> CompletableFuture<HttpResponse<T>> sendHedged(HttpRequest request,
+                                                                HttpResponse.BodyHandler<T> bodyHandler,
+                                                                CompletableFuture<Void> cancellation) {
+        long hedgeDelay = hedge ? latencyTracker.getPercentileMillis(hedgePercentile) : -1;
+        if (hedgeDelay < 0) {
+            return sendScheduled(request, bodyHandler, cancellation);
+        }
+
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        AtomicInteger outstanding = new AtomicInteger(1);
+        List<CompletableFuture<Void>> attempts = new CopyOnWriteArrayList<>();
+        Function<CompletableFuture<Void>, BiConsumer<HttpResponse<T>, Throwable>> onComplete =
+                attempt -> (response, throwable) -> {
+                    if (throwable == null && !retryPolicy.isRetryable(response.statusCode())) {
+                        result.complete(response);
+                        // stop the losing request
+                        attempts.stream().filter(other -> other != attempt).forEach(other -> other.complete(null));
+                    } else if (outstanding.decrementAndGet() == 0) {
+                        // every attempt failed, the last failure is handed to the retry policy
+                        if (throwable != null) {
+                            result.completeExceptionally(throwable);
+                        } else {
+                            result.complete(response);
+                        }
+                    }
+                };
+
+        CompletableFuture<Void> primary = newAttempt(cancellation);
+        attempts.add(primary);
+        sendScheduled(request, cancellable(bodyHandler, primary), primary).whenComplete(onComplete.apply(primary));
+        CogExecutors.delayedExecutor(Math.max(hedgeDelay, hedgeMinDelay), TimeUnit.MILLISECONDS).execute(() -> {
+            if (!result.isDone() && !cancellation.isDone()) {
+                LOGGER.fine("Hedging slow request to " + uri + " after " + Math.max(hedgeDelay, hedgeMinDelay) + "ms");
+                outstanding.incrementAndGet();
+                CompletableFuture<Void> duplicate = newAttempt(cancellation);
+                attempts.add(duplicate);
+                if (result.isDone()) {
+                    duplicate.complete(null);
+                }
+                sendScheduled(request, cancellable(bodyHandler, duplicate), duplicate)
+                        .whenComplete(onComplete.apply(duplicate));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return a cancellation token for a single attempt of a hedged request, completed when the read is cancelled or
+     * when another attempt wins
+     */
+    protected CompletableFuture<Void> newAttempt(CompletableFuture<Void> cancellation) {
+        CompletableFuture<Void> attempt = new CompletableFuture<>();
+        cancellation.whenComplete((value, throwable) -> attempt.complete(null));
+        return attempt;
+    }
+
+    /**
+     * Wraps a body handler so that the body transfer is stopped, and the body fails, once the cancellation completes.
+     */
+    protected <T> HttpResponse.BodyHandler<T> cancellable(HttpResponse.BodyHandler<T> bodyHandler,
+                                                          CompletableFuture<Void> cancellation) {
+        return responseInfo -> new CancellableBodySubscriber<>(bodyHandler.apply(responseInfo), cancellation);
+    }
+
+    /**
+     * Sends a request through the scheduler, which starts it once the per-host and global in-flight limits allow.
+     * The latency of successful requests is recorded for hedging.  Once the read is cancelled, a queued request is
+     * dropped and an in-flight exchange is cancelled.
+     *
+     * @param request
+     * @param bodyHandler
+     * @param cancellation
+     * @return
+     */
+    protected <T> CompletableFuture<HttpResponse<T>> sendScheduled(HttpRequest request,
+                                                                   HttpResponse.BodyHandler<T> bodyHandler,
+                                                                   CompletableFuture<Void> cancellation) {
+        if (cancellation.isDone()) {
+            return CompletableFuture.failedFuture(new CancellationException("Request to " + uri + " was cancelled"));
+        }
+        CompletableFuture<HttpResponse<T>> scheduled = scheduler.submit(uri.getHost(), this, () -> {
+            long start = System.nanoTime();
+            CompletableFuture<HttpResponse<T>> response = CogExecutors.isVirtual()
+                    ? sendBlocking(request, bodyHandler, cancellation)
+                    : client.sendAsync(request, bodyHandler);
+            cancellation.whenComplete((value, throwable) -> response.cancel(true));
+            return response.whenComplete((value, throwable) -> {
+                if (throwable == null) {
+                    latencyTracker.record(System.nanoTime() - start);
+                }
+            });
+        });
+        cancellation.whenComplete((value, throwable) -> scheduled.cancel(true));
+        return scheduled;
+    }
+
+    /**
+     * Sends a request with the blocking {@link HttpClient#send} on its own virtual thread, which simply parks while the
+     * exchange is in progress.  The thread is interrupted once the read is cancelled.
+     */
+    protected <T> CompletableFuture<HttpResponse<T>> sendBlocking(HttpRequest request,
+                                                                  HttpResponse.BodyHandler<T> bodyHandler,
+                                                                  CompletableFuture<Void> cancellation) {
+        CompletableFuture<HttpResponse<T>> response = new CompletableFuture<>();
+        CogExecutors.getExecutor().execute(() -> {
+            Thread thread = Thread.currentThread();
+            AtomicBoolean sent = new AtomicBoolean();
+            cancellation.thenRun(() -> {
+                if (!sent.get()) {
+                    thread.interrupt();
+                }
+            });
+            try {
+                response.complete(client.send(request, bodyHandler));
+            } catch (InterruptedException e) {
+                response.completeExceptionally(new CancellationException("Request to " + uri + " was cancelled"));
+            } catch (IOException | RuntimeException e) {
+                response.completeExceptionally(e);
+            } finally {
+                sent.set(true);
+                Thread.interrupted();
+            }
+        });
+        return response;
+    }
+
+    /**
+     * Sends a request and blocks until the response has been received, the read timeout expires or the reader is
+     * cancelled.
+     */
+    protected <T> HttpResponse<T> get(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) throws IOException {
+        CompletableFuture<Void> cancellation = newCancellation(new long[][]{}, null);
+        CompletableFuture<HttpResponse<T>> response = send(request, bodyHandler, cancellation);
+        cancellation.whenComplete((value, throwable) -> response.cancel(true));
+        try {
+            return response.get(readTimeout, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            cancellation.complete(null);
+            throw new IOException("Timed out after " + readTimeout + "s reading from " + uri);
+        } catch (CancellationException e) {
+            throw new IOException("Reading from " + uri + " was cancelled");
+        } catch (ExecutionException e) {
+            throw toIOException(e);
+        } catch (InterruptedException e) {
+            cancellation.complete(null);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading from " + uri);
+        } finally {
+            cancellations.remove(cancellation);
+        }
+    }
+
+    protected void readValidators(HttpResponse<?> response) {
+        etag = response.headers().firstValue(ETAG_HEADER).orElse(null);
+        lastModified = response.headers().firstValue(LAST_MODIFIED_HEADER).orElse(null);
+    }
+
+    /**
+     * Blocking request used to read the header.  The body is streamed into the page store like any other range.
+     *
+     * @return the bytes that were read, which may be fewer than requested if the source is smaller
+     */
+    protected byte[] read(long start, long end) throws IOException {
+        long[] range = new long[]{start, end};
+        HttpResponse<Long> response = get(buildRequest(range),
+                responseInfo -> rangeBodySubscriber(responseInfo, range, store, null));
         try {
-            HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            checkStatus(response);
+        } catch (CompletionException e) {
+            throw toIOException(e);
+        }
 
-            // if the filesize variable has not been initialized, read it from the response
-            if (filesize == -1) {
-                HttpHeaders headers = response.headers();
-                String contentRange = headers.firstValue(CONTENT_RANGE_HEADER).get();
+        readValidators(response);
+
+        // if the filesize variable has not been initialized, read it from the response
+        if (filesize == -1) {
+            if (response.statusCode() == 200) {
+                // the server ignored the range header and started sending the entire file
+                filesize = response.headers().firstValueAsLong("content-length").orElse(-1);
+            } else {
+                String contentRange = response.headers().firstValue(CONTENT_RANGE_HEADER).orElse("");
                 if (contentRange.contains("/")) {
                     String length = contentRange.split("/")[1];
                     try {
-                        filesize = Integer.parseInt(length);
-                        buffer = ByteBuffer.allocate(filesize);
-                    } catch (Exception e) {
-                        e.printStackTrace();
+                        filesize = Long.parseLong(length);
+                    } catch (NumberFormatException e) {
+                        LOGGER.warning("Unable to parse file size from content-range header '" + contentRange
+                                + "' for " + uri);
                     }
                 }
             }
-            return response.body();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
         }
-        return new byte[0];
+        return store.read(start, (int) (long) response.body());
     }
 
+    /**
+     * Delegates to another body subscriber until the cancellation completes, then cancels the subscription and fails
+     * the body.
+     */
+    protected static class CancellableBodySubscriber<T> implements HttpResponse.BodySubscriber<T> {
+
+        protected final HttpResponse.BodySubscriber<T> delegate;
+        protected final CompletableFuture<Void> cancellation;
+        protected final CompletableFuture<T> body = new CompletableFuture<>();
+
+        protected CancellableBodySubscriber(HttpResponse.BodySubscriber<T> delegate,
+                                            CompletableFuture<Void> cancellation) {
+            this.delegate = delegate;
+            this.cancellation = cancellation;
+            delegate.getBody().whenComplete((value, throwable) -> {
+                if (throwable != null) {
+                    body.completeExceptionally(throwable);
+                } else {
+                    body.complete(value);
+                }
+            });
+        }
+
+        @Override
+        public CompletionStage<T> getBody() {
+            return body;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            cancellation.whenComplete((value, throwable) -> {
+                subscription.cancel();
+                body.completeExceptionally(new CancellationException("Hedged request was cancelled"));
+            });
+            delegate.onSubscribe(subscription);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> item) {
+            if (!cancellation.isDone()) {
+                delegate.onNext(item);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            delegate.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            delegate.onComplete();
+        }
+    }
+
+    /**
+     * A prefetched range that has not been written yet.
+     */
+    protected static class PendingRange {
+
+        protected final long end;
+        protected final CompletableFuture<Void> completion;
+        protected final CompletableFuture<Void> cancellation;
+
+        protected PendingRange(long end, CompletableFuture<Void> completion, CompletableFuture<Void> cancellation) {
+            this.end = end;
+            this.completion = completion;
+            this.cancellation = cancellation;
+        }
+
+        /**
+         * Combines two prefetches of ranges that start at the same position.
+         */
+        protected static PendingRange merge(PendingRange a, PendingRange b) {
+            return new PendingRange(Math.max(a.end, b.end), CompletableFuture.allOf(a.completion, b.completion),
+                    b.cancellation);
+        }
+    }
 }
@@ -0,0 +1,44 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import java.net.URI;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Creates {@link HttpRangeReader} instances for http and https sources.  The per-scheme properties readTimeout,
+ * requestTimeout, maxRangeSize, maxSubRanges, multiRange, maxRangesPerRequest and hedge override the global
+ * cog.http.* settings, e.g. {@code cog.rangeReader.https.multiRange=true}.
+ */
+public class HttpRangeReaderFactory implements RangeReaderFactory {
+
+    private static final Set<String> SCHEMES = Set.of("http", "https");
+
+    @Override
+    public Set<String> getSchemes() {
+        return SCHEMES;
+    }
+
+    @Override
+    public RangeReader create(URI uri) {
+        return configure(new HttpRangeReader(uri), RangeReaderRegistry.getScheme(uri));
+    }
+
+    protected <T extends HttpRangeReader> T configure(T rangeReader, String scheme) {
+        apply(scheme, "readTimeout", value -> rangeReader.setReadTimeout(Integer.parseInt(value)));
+        apply(scheme, "requestTimeout", value -> rangeReader.setRequestTimeout(Integer.parseInt(value)));
+        apply(scheme, "maxRangeSize", value -> rangeReader.setMaxRangeSize(Long.parseLong(value)));
+        apply(scheme, "maxSubRanges", value -> rangeReader.setMaxSubRanges(Integer.parseInt(value)));
+        apply(scheme, "multiRange", value -> rangeReader.setMultiRange(Boolean.parseBoolean(value)));
+        apply(scheme, "maxRangesPerRequest", value -> rangeReader.setMaxRangesPerRequest(Integer.parseInt(value)));
+        apply(scheme, "hedge", value -> rangeReader.setHedge(Boolean.parseBoolean(value)));
+        apply(scheme, "batchWindow", value -> rangeReader.setBatchWindow(Long.parseLong(value)));
+        return rangeReader;
+    }
+
+    protected static void apply(String scheme, String key, Consumer<String> setter) {
+        String value = RangeReaderRegistry.getProperty(scheme, key, null);
+        if (value != null) {
+            setter.accept(value);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a sliding window of recent request latencies for a host so that percentiles can be estimated, e.g. to decide
+ * when a slow request should be hedged.
+ */
+public class LatencyTracker {
+
+    private static final int WINDOW_SIZE = 256;
+    private static final int MIN_SAMPLES = 20;
+    private static final Map<String, LatencyTracker> TRACKERS = new ConcurrentHashMap<>();
+
+    private final long[] samples = new long[WINDOW_SIZE];
+    private int count;
+    private int next;
+
+    public static LatencyTracker forHost(String host) {
+        return TRACKERS.computeIfAbsent(host == null ? "" : host, key -> new LatencyTracker());
+    }
+
+    public synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % WINDOW_SIZE;
+        count = Math.min(count + 1, WINDOW_SIZE);
+    }
+
+    /**
+     * @param percentile the percentile to estimate, between 0 and 1
+     * @return the latency in milliseconds at the given percentile, or -1 if too few samples have been recorded
+     */
+    public long getPercentileMillis(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if (count < MIN_SAMPLES) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.min(sorted.length - 1, Math.max(0, Math.ceil(percentile * sorted.length) - 1));
+        return TimeUnit.NANOSECONDS.toMillis(sorted[index]);
+    }
+}
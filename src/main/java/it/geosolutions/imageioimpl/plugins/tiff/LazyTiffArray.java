@@ -0,0 +1,157 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * An IFD value array, e.g. TileOffsets, that was left out of the header because of its size.  Entries are fetched in
+ * blocks when they are needed, so reading a few tiles of a huge image only fetches the few kilobytes of offsets and
+ * byte counts that describe them.  Fetched blocks are copied out of the RangeReader and are not requested again, so
+ * they survive the pages of an aborted read being released.  Subclasses may keep blocks in a shared cache as well.
+ */
+public class LazyTiffArray {
+
+    private static final int ENTRIES_PER_BLOCK = 1024;
+    private final static Logger LOGGER = Logger.getLogger(LazyTiffArray.class.getName());
+
+    protected final RangeReader rangeReader;
+    protected final ByteOrder byteOrder;
+    protected final int imageIndex;
+    protected final int tag;
+    protected final int type;
+    protected final long count;
+    protected final long offset;
+    protected final int entrySize;
+    private final Map<Integer, byte[]> blocks = new ConcurrentHashMap<>();
+
+    public LazyTiffArray(RangeReader rangeReader, ByteOrder byteOrder, int imageIndex, int tag, int type, long count,
+                         long offset) {
+        this.rangeReader = rangeReader;
+        this.byteOrder = byteOrder;
+        this.imageIndex = imageIndex;
+        this.tag = tag;
+        this.type = type;
+        this.count = count;
+        this.offset = offset;
+        entrySize = TiffHeaderLoader.getTypeSize(type);
+    }
+
+    public int getImageIndex() {
+        return imageIndex;
+    }
+
+    public int getTag() {
+        return tag;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the position of the array in the source
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the size of the array in bytes
+     */
+    public long getByteLength() {
+        return count * entrySize;
+    }
+
+    /**
+     * Fetches the blocks of entries containing the given indices that have not been fetched yet, in as few range
+     * requests as possible.
+     */
+    public void fetch(Collection<Integer> indices) throws IOException {
+        fetch(indices, null);
+    }
+
+    /**
+     * @param cancellation completed when the read needing the entries is aborted, may be null
+     */
+    public synchronized void fetch(Collection<Integer> indices, CompletableFuture<Void> cancellation)
+            throws IOException {
+        RangeBuilder rangeBuilder = RangeBuilder.exact();
+        BitSet missingBlocks = new BitSet();
+        for (int index : indices) {
+            if (index < 0 || index >= count) {
+                continue;
+            }
+            int block = index / ENTRIES_PER_BLOCK;
+            if (blocks.containsKey(block) || missingBlocks.get(block)) {
+                continue;
+            }
+            byte[] cached = getCachedBlock(block);
+            if (cached != null) {
+                blocks.put(block, cached);
+                continue;
+            }
+            missingBlocks.set(block);
+            rangeBuilder.addTileRange(getBlockStart(block), getBlockLength(block));
+        }
+        if (missingBlocks.isEmpty()) {
+            return;
+        }
+        LOGGER.fine("Fetching " + missingBlocks.cardinality() + " block(s) of tag " + tag + " for image " + imageIndex);
+        rangeReader.readAsync(rangeBuilder.getRanges(), cancellation);
+        for (int block = missingBlocks.nextSetBit(0); block >= 0; block = missingBlocks.nextSetBit(block + 1)) {
+            byte[] bytes = rangeReader.getBytes(getBlockStart(block), getBlockLength(block));
+            blocks.put(block, bytes);
+            cacheBlock(block, bytes);
+        }
+    }
+
+    protected long getBlockStart(int block) {
+        return offset + (long) block * ENTRIES_PER_BLOCK * entrySize;
+    }
+
+    protected int getBlockLength(int block) {
+        return (int) Math.min(ENTRIES_PER_BLOCK, count - (long) block * ENTRIES_PER_BLOCK) * entrySize;
+    }
+
+    /**
+     * @return the bytes of the block kept by a shared cache, or null.  Nothing is cached by default
+     */
+    protected byte[] getCachedBlock(int block) {
+        return null;
+    }
+
+    /**
+     * Offers the bytes of a block that has just been fetched to a shared cache.  Nothing is cached by default
+     */
+    protected void cacheBlock(int block, byte[] bytes) {
+    }
+
+    /**
+     * @return the entry at the index.  Its block must have been fetched
+     * @throws IllegalStateException if the block of the entry has not been fetched
+     */
+    public long get(int index) {
+        byte[] block = blocks.get(index / ENTRIES_PER_BLOCK);
+        if (block == null) {
+            throw new IllegalStateException("Entry " + index + " of tag " + tag + " for image " + imageIndex
+                    + " has not been fetched");
+        }
+        ByteBuffer entries = ByteBuffer.wrap(block).order(byteOrder);
+        int position = index % ENTRIES_PER_BLOCK * entrySize;
+        switch (entrySize) {
+            case 2:
+                return entries.getShort(position) & 0xffff;
+            case 4:
+                return entries.getInt(position) & 0xffffffffL;
+            default:
+                return entries.getLong(position);
+        }
+    }
+}
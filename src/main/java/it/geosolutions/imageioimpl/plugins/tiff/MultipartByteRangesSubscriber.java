@@ -0,0 +1,238 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * Streaming parser for <code>multipart/byteranges</code> response bodies.  Each part is written into the page store at
+ * the position given by its Content-Range header as the bytes arrive, so the full response is never buffered.  The
+ * body of the response is the list of ranges that were received, which allows the caller to request any ranges the
+ * server chose not to return.
+ * <p>
+ * When the optional cancellation future completes, the subscription is cancelled and no further bytes are written.
+ */
+public class MultipartByteRangesSubscriber implements HttpResponse.BodySubscriber<List<long[]>> {
+
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private enum State { DELIMITER, HEADERS, BODY, DONE }
+
+    protected final String delimiter;
+    protected final String closeDelimiter;
+    protected final SparsePageStore store;
+    protected final CompletableFuture<?> cancellation;
+    protected final CompletableFuture<List<long[]>> result = new CompletableFuture<>();
+    protected final List<long[]> receivedRanges = new ArrayList<>();
+
+    private Flow.Subscription subscription;
+    private volatile boolean cancelled;
+    private State state = State.DELIMITER;
+    private StringBuilder line = new StringBuilder();
+    private long[] currentRange;
+    private long position;
+    private long remaining;
+
+    public MultipartByteRangesSubscriber(String boundary, SparsePageStore store) {
+        this(boundary, store, null);
+    }
+
+    public MultipartByteRangesSubscriber(String boundary, SparsePageStore store, CompletableFuture<?> cancellation) {
+        this.delimiter = "--" + boundary;
+        this.closeDelimiter = delimiter + "--";
+        this.store = store;
+        this.cancellation = cancellation;
+    }
+
+    /**
+     * Extracts the boundary parameter from a <code>multipart/byteranges</code> content type header.
+     *
+     * @param contentType the value of the Content-Type header
+     * @return the boundary, or null if the header does not describe a multipart/byteranges body
+     */
+    public static String getBoundary(String contentType) {
+        if (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/byteranges")) {
+            return null;
+        }
+        for (String parameter : contentType.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.toLowerCase(Locale.ROOT).startsWith("boundary=")) {
+                String boundary = parameter.substring("boundary=".length()).trim();
+                if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                    boundary = boundary.substring(1, boundary.length() - 1);
+                }
+                return boundary;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses a Content-Range header value such as <code>bytes 500-999/8000</code>.
+     *
+     * @param contentRange the header value
+     * @return the inclusive start and end positions, or null if the value cannot be parsed
+     */
+    public static long[] parseContentRange(String contentRange) {
+        if (contentRange == null) {
+            return null;
+        }
+        String value = contentRange.trim();
+        if (value.startsWith("bytes")) {
+            value = value.substring("bytes".length()).trim();
+        }
+        int dash = value.indexOf('-');
+        int slash = value.indexOf('/');
+        if (dash <= 0 || slash < dash) {
+            return null;
+        }
+        try {
+            return new long[]{Long.parseLong(value.substring(0, dash).trim()),
+                    Long.parseLong(value.substring(dash + 1, slash).trim())};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public CompletionStage<List<long[]>> getBody() {
+        return result;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        if (cancellation != null) {
+            cancellation.whenComplete((value, throwable) -> {
+                cancelled = true;
+                subscription.cancel();
+                result.completeExceptionally(new CancellationException("Multi-range transfer cancelled"));
+            });
+        }
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> items) {
+        if (cancelled) {
+            return;
+        }
+        try {
+            for (ByteBuffer item : items) {
+                parse(item);
+            }
+        } catch (RuntimeException e) {
+            subscription.cancel();
+            result.completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        result.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        result.complete(receivedRanges);
+    }
+
+    protected void parse(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            switch (state) {
+                case BODY:
+                    int count = (int) Math.min(remaining, buffer.remaining());
+                    ByteBuffer chunk = buffer.duplicate();
+                    chunk.limit(chunk.position() + count);
+                    store.write(position, chunk, cancellation);
+                    buffer.position(buffer.position() + count);
+                    position += count;
+                    remaining -= count;
+                    if (remaining == 0) {
+                        receivedRanges.add(currentRange);
+                        state = State.DELIMITER;
+                    }
+                    break;
+                case DONE:
+                    // epilogue, ignore
+                    buffer.position(buffer.limit());
+                    break;
+                default:
+                    String completedLine = readLine(buffer);
+                    if (completedLine != null) {
+                        processLine(completedLine);
+                    }
+            }
+        }
+    }
+
+    protected void processLine(String completedLine) {
+        if (state == State.DELIMITER) {
+            // anything other than a delimiter (preamble, CRLF after a part body) is skipped.  RFC 2046 allows transport
+            // padding after the boundary
+            String boundaryLine = stripTrailingWhitespace(completedLine);
+            if (boundaryLine.equals(closeDelimiter)) {
+                state = State.DONE;
+            } else if (boundaryLine.equals(delimiter)) {
+                currentRange = null;
+                state = State.HEADERS;
+            }
+        } else if (completedLine.isEmpty()) {
+            // end of the part headers
+            if (currentRange == null) {
+                throw new IllegalStateException("multipart/byteranges part is missing a Content-Range header");
+            }
+            position = currentRange[0];
+            remaining = currentRange[1] - currentRange[0] + 1;
+            state = remaining > 0 ? State.BODY : State.DELIMITER;
+        } else {
+            int colon = completedLine.indexOf(':');
+            if (colon > 0 && completedLine.substring(0, colon).trim().equalsIgnoreCase("content-range")) {
+                currentRange = parseContentRange(completedLine.substring(colon + 1));
+            }
+        }
+    }
+
+    /**
+     * @return the line without any trailing linear white space, i.e. spaces and tabs
+     */
+    protected static String stripTrailingWhitespace(String line) {
+        int end = line.length();
+        while (end > 0 && (line.charAt(end - 1) == ' ' || line.charAt(end - 1) == '\t')) {
+            end--;
+        }
+        return line.substring(0, end);
+    }
+
+    /**
+     * Consumes bytes up to and including the next line feed.
+     *
+     * @return the line without its terminator, or null if the buffer ran out before the line was complete
+     */
+    protected String readLine(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            char c = (char) (buffer.get() & 0xff);
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                String completedLine = line.toString();
+                line.setLength(0);
+                return completedLine;
+            }
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new IllegalStateException("multipart/byteranges line exceeds " + MAX_LINE_LENGTH + " bytes");
+            }
+            line.append(c);
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,111 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * Writes a response body straight into the page store as its buffers arrive, starting at the given source position.
+ * This avoids materializing each response as a byte array and copying it into the store afterwards.  The body of the
+ * response is the number of bytes written.
+ * <p>
+ * When the optional cancellation future completes, the subscription is cancelled, which stops the transfer, and no
+ * further bytes are written.
+ * <p>
+ * When a window is given, only the bytes inside it are written and the transfer is stopped once the body has passed
+ * the end of the window.  This is used when a server ignores the range header and answers with the entire file.
+ */
+public class PageStoreBodySubscriber implements HttpResponse.BodySubscriber<Long> {
+
+    protected final SparsePageStore store;
+    protected final long start;
+    protected final long windowStart;
+    protected final long windowEnd;
+    protected final CompletableFuture<?> cancellation;
+    protected final CompletableFuture<Long> result = new CompletableFuture<>();
+    private volatile boolean cancelled;
+    private Flow.Subscription subscription;
+    private long position;
+    private long written;
+
+    public PageStoreBodySubscriber(SparsePageStore store, long start) {
+        this(store, start, null);
+    }
+
+    public PageStoreBodySubscriber(SparsePageStore store, long start, CompletableFuture<?> cancellation) {
+        this(store, start, 0, Long.MAX_VALUE, cancellation);
+    }
+
+    /**
+     * @param start the source position of the first byte of the body
+     * @param windowStart the source position of the first byte to write
+     * @param windowEnd the source position of the last byte to write, inclusive
+     */
+    public PageStoreBodySubscriber(SparsePageStore store, long start, long windowStart, long windowEnd,
+                                   CompletableFuture<?> cancellation) {
+        this.store = store;
+        this.start = start;
+        this.position = start;
+        this.windowStart = windowStart;
+        this.windowEnd = windowEnd;
+        this.cancellation = cancellation;
+    }
+
+    @Override
+    public CompletionStage<Long> getBody() {
+        return result;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        if (cancellation != null) {
+            cancellation.whenComplete((value, throwable) -> {
+                cancelled = true;
+                subscription.cancel();
+                result.completeExceptionally(new CancellationException("Range transfer cancelled"));
+            });
+        }
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> items) {
+        if (cancelled || result.isDone()) {
+            return;
+        }
+        for (ByteBuffer item : items) {
+            int count = item.remaining();
+            long skip = Math.max(0, windowStart - position);
+            long keep = Math.min(count - 1L, windowEnd - position) + 1 - skip;
+            if (keep > 0) {
+                ByteBuffer window = item.duplicate();
+                window.position(item.position() + (int) skip);
+                window.limit(window.position() + (int) keep);
+                store.write(position + skip, window, cancellation);
+                written += keep;
+            }
+            position += count;
+            if (position > windowEnd) {
+                // the rest of the body lies outside the window
+                subscription.cancel();
+                result.complete(written);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        result.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        result.complete(written);
+    }
+}
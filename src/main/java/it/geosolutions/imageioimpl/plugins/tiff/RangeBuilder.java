@@ -1,41 +1,93 @@
 package it.geosolutions.imageioimpl.plugins.tiff;
 
+import it.geosolutions.imageioimpl.plugins.tiff.stream.CacheConfig;
+
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 
 /**
+ * Builds the byte ranges that need to be requested for a set of tiles.  Tile ranges are sorted by offset and merged
+ * when they are contiguous.  Optionally, tiles separated by a small gap can also be merged into a single range, in
+ * which case the filler bytes between them are fetched and simply ignored.  This trades a little bandwidth for fewer
+ * round trips, which is usually a good deal against high latency object stores.
+ *
  * @author joshfix
  * Created on 2019-08-27
  */
 public class RangeBuilder {
 
-    protected long currentRangeStart;
-    protected long currentRangeEnd;
-    protected boolean tileAdded = false;
-    protected List<long[]> ranges = new ArrayList<>();
+    // maximum number of filler bytes between two tiles for them to be merged into a single range
+    public static final String COG_RANGE_MAX_GAP = "cog.range.maxGap";
+
+    // maximum ratio of filler bytes to total bytes in a merged range
+    public static final String COG_RANGE_MAX_WASTE_RATIO = "cog.range.maxWasteRatio";
+
+    protected long maxGap;
+    protected double maxWasteRatio;
+    protected List<long[]> tileRanges = new ArrayList<>();
+
+    public RangeBuilder() {
+        this(Long.parseLong(CacheConfig.getPropertyValue(COG_RANGE_MAX_GAP, "0")),
+                Double.parseDouble(CacheConfig.getPropertyValue(COG_RANGE_MAX_WASTE_RATIO, "1.0")));
+    }
+
+    public RangeBuilder(long maxGap, double maxWasteRatio) {
+        this.maxGap = maxGap;
+        this.maxWasteRatio = maxWasteRatio;
+    }
 
-    public RangeBuilder(long initialRangeStart, long initialRangeEnd) {
-        currentRangeStart = initialRangeStart;
-        currentRangeEnd = initialRangeEnd;
+    /**
+     * @return a builder that only merges overlapping and contiguous ranges, regardless of the configured gap limits
+     */
+    public static RangeBuilder exact() {
+        return new RangeBuilder(0, 0);
     }
 
     public void addTileRange(long offset, long tileOrStripByteCount) {
-        tileAdded = true;
-        if (offset == currentRangeEnd + 1) {
-            // this tile starts where the last one left off
-            currentRangeEnd = offset + tileOrStripByteCount - 1;
-        } else {
-            // this tile is in a new position.  add the current range and start a new one.
-            ranges.add(new long[]{currentRangeStart, currentRangeEnd});
-            currentRangeStart = offset;
-            currentRangeEnd = currentRangeStart + tileOrStripByteCount - 1;
+        if (tileOrStripByteCount <= 0) {
+            return;
         }
+        tileRanges.add(new long[]{offset, offset + tileOrStripByteCount - 1});
     }
 
+    /**
+     * Sorts the tile ranges by offset and merges them into as few ranges as the gap and waste limits allow.
+     *
+     * @return the inclusive start and end positions of each range to read
+     */
     public List<long[]> getRanges() {
-        if (tileAdded) {
-            ranges.add(new long[]{currentRangeStart, currentRangeEnd});
+        List<long[]> ranges = new ArrayList<>();
+        if (tileRanges.isEmpty()) {
+            return ranges;
+        }
+
+        List<long[]> sorted = new ArrayList<>(tileRanges);
+        sorted.sort(Comparator.comparingLong(range -> range[0]));
+
+        long currentRangeStart = sorted.get(0)[0];
+        long currentRangeEnd = sorted.get(0)[1];
+        long currentWaste = 0;
+        for (int i = 1; i < sorted.size(); i++) {
+            long[] tileRange = sorted.get(i);
+            long gap = tileRange[0] - currentRangeEnd - 1;
+            if (gap <= 0) {
+                // this tile starts where the last one left off (or overlaps it)
+                currentRangeEnd = Math.max(currentRangeEnd, tileRange[1]);
+            } else if (gap <= maxGap
+                    && (double) (currentWaste + gap) / (tileRange[1] - currentRangeStart + 1) <= maxWasteRatio) {
+                // this tile is close enough to read across the gap
+                currentWaste += gap;
+                currentRangeEnd = tileRange[1];
+            } else {
+                // this tile is in a new position.  add the current range and start a new one.
+                ranges.add(new long[]{currentRangeStart, currentRangeEnd});
+                currentRangeStart = tileRange[0];
+                currentRangeEnd = tileRange[1];
+                currentWaste = 0;
+            }
         }
+        ranges.add(new long[]{currentRangeStart, currentRangeEnd});
         return ranges;
     }
 }
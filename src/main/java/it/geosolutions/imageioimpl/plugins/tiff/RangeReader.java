@@ -1,6 +1,8 @@
 package it.geosolutions.imageioimpl.plugins.tiff;
 
+import java.io.IOException;
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author joshfix
@@ -8,11 +10,70 @@ import java.util.Collection;
  */
 public interface RangeReader {
 
-    byte[] getBytes();
-    int getFilesize();
-    void setFilesize(int filesize);
-    void readAsync(long[]... ranges);
-    void readAsync(Collection<long[]> ranges);
-    byte[] readHeader(int headerByteLength);
+    /**
+     * Copies previously fetched bytes into the destination array.
+     *
+     * @throws java.io.UncheckedIOException if any of the bytes has not been fetched, rather than returning zeros
+     */
+    void readBytes(long position, byte[] dest, int offset, int length);
+    byte[] getBytes(long position, int length);
+    long getFilesize();
+    void setFilesize(long filesize);
+    void readAsync(long[]... ranges) throws IOException;
+    void readAsync(Collection<long[]> ranges) throws IOException;
+
+    /**
+     * Reads the ranges as a single read that is cancelled, failing with an IOException, once the cancellation
+     * completes.  Cancelling stops only this read and releases only the bytes of its ranges.
+     *
+     * @param cancellation completed to cancel the read, may be null
+     */
+    void readAsync(Collection<long[]> ranges, CompletableFuture<Void> cancellation) throws IOException;
+
+    /**
+     * Starts reading the ranges without waiting for them to complete.  {@link #readBytes} and {@link #getBytes} block
+     * until the prefetched bytes they need have arrived, and throw an UncheckedIOException if their range failed.
+     */
+    void prefetch(long[]... ranges);
+    void prefetch(Collection<long[]> ranges);
+
+    /**
+     * Starts reading the ranges as a single read that is cancelled once the cancellation completes.
+     *
+     * @param cancellation completed to cancel the read, may be null
+     */
+    void prefetch(Collection<long[]> ranges, CompletableFuture<Void> cancellation);
+
+    /**
+     * Reads the first headerByteLength bytes of the file, or the whole file if it is smaller.
+     */
+    byte[] readHeader(int headerByteLength) throws IOException;
+
+    /**
+     * Sets the number of bytes at the start of the file that have already been read, so those bytes are not requested
+     * again.
+     */
+    void setHeaderByteLength(int headerByteLength);
+
+    /**
+     * @return a value that changes whenever the source changes, e.g. its ETag, or null if none is available.  Only
+     * valid once the header has been read.
+     */
+    String getValidator();
+
+    /**
+     * Checks, as cheaply as possible, whether the source has changed since the validator was obtained.
+     *
+     * @param validator a value previously returned by {@link #getValidator()}
+     * @return true if the source has changed or the validator is null
+     */
+    boolean isModified(String validator) throws IOException;
+
+    /**
+     * Cancels all outstanding reads, which then fail with an IOException, and releases the buffers holding the bytes of
+     * their ranges.
+     * The reader can still be used for new reads afterwards.
+     */
+    void cancel();
 
 }
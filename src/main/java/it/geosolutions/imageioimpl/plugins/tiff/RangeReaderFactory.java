@@ -0,0 +1,37 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Set;
+
+/**
+ * Service provider interface for RangeReader implementations.  Factories are discovered with
+ * {@link java.util.ServiceLoader} by listing them in
+ * {@code META-INF/services/it.geosolutions.imageioimpl.plugins.tiff.RangeReaderFactory}, and are selected by
+ * {@link RangeReaderRegistry} based on the scheme of the source URI.
+ */
+public interface RangeReaderFactory {
+
+    /**
+     * @return the lower case URI schemes handled by this factory, e.g. http and https
+     */
+    Set<String> getSchemes();
+
+    /**
+     * Creates a reader for the source.  Implementations should apply any per-scheme tuning properties, which can be
+     * looked up with {@link RangeReaderRegistry#getProperty(String, String, String)}.
+     *
+     * @param uri the source to read
+     * @return a new reader for the source
+     * @throws IOException if the source cannot be opened
+     */
+    RangeReader create(URI uri) throws IOException;
+
+    /**
+     * When several factories handle the same scheme, the one with the highest priority is used.  The built-in
+     * factories have a priority of 0.
+     */
+    default int getPriority() {
+        return 0;
+    }
+}
@@ -0,0 +1,96 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import it.geosolutions.imageioimpl.plugins.tiff.stream.CacheConfig;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+/**
+ * Selects the RangeReaderFactory used for a source by its URI scheme.  Factories are loaded once with
+ * {@link ServiceLoader} and can also be registered programmatically.  A specific factory can be forced for a scheme by
+ * setting {@code cog.rangeReader.<scheme>.factory} to its class name.
+ * <p>
+ * Factories read their per-scheme tuning properties, named {@code cog.rangeReader.<scheme>.<property>}, with
+ * {@link #getProperty(String, String, String)}.
+ */
+public final class RangeReaderRegistry {
+
+    // prefix of the per-scheme properties
+    public static final String COG_RANGE_READER_PREFIX = "cog.rangeReader.";
+
+    // per-scheme property naming the factory class to use for the scheme
+    public static final String FACTORY_PROPERTY = "factory";
+
+    private static final Logger LOGGER = Logger.getLogger(RangeReaderRegistry.class.getName());
+    private static final List<RangeReaderFactory> FACTORIES = new CopyOnWriteArrayList<>(loadFactories());
+
+    private RangeReaderRegistry() {
+    }
+
+    private static List<RangeReaderFactory> loadFactories() {
+        List<RangeReaderFactory> factories = new ArrayList<>();
+        for (RangeReaderFactory factory : ServiceLoader.load(RangeReaderFactory.class,
+                RangeReaderRegistry.class.getClassLoader())) {
+            LOGGER.fine("Loaded RangeReaderFactory " + factory.getClass().getName() + " for " + factory.getSchemes());
+            factories.add(factory);
+        }
+        return factories;
+    }
+
+    public static void register(RangeReaderFactory factory) {
+        FACTORIES.add(factory);
+    }
+
+    public static void unregister(RangeReaderFactory factory) {
+        FACTORIES.remove(factory);
+    }
+
+    /**
+     * @return the factory for the source's scheme, or null if no factory handles it.  URIs without a scheme are
+     * treated as files.
+     */
+    public static RangeReaderFactory getFactory(URI uri) {
+        String scheme = getScheme(uri);
+        String factoryClass = getProperty(scheme, FACTORY_PROPERTY, null);
+        return FACTORIES.stream()
+                .filter(factory -> factory.getSchemes().contains(scheme))
+                .filter(factory -> factoryClass == null || factory.getClass().getName().equals(factoryClass))
+                .max(Comparator.comparingInt(RangeReaderFactory::getPriority))
+                .orElse(null);
+    }
+
+    public static boolean canRead(URI uri) {
+        return getFactory(uri) != null;
+    }
+
+    /**
+     * @param uri the source to read
+     * @return a new reader for the source, created by the factory registered for its scheme
+     * @throws IOException if no factory handles the scheme or the source cannot be opened
+     */
+    public static RangeReader createRangeReader(URI uri) throws IOException {
+        RangeReaderFactory factory = getFactory(uri);
+        if (factory == null) {
+            throw new IOException("No RangeReaderFactory registered for scheme '" + getScheme(uri) + "' of " + uri);
+        }
+        return factory.create(uri);
+    }
+
+    /**
+     * Looks up a per-scheme property, i.e. cog.rangeReader.&lt;scheme&gt;.&lt;key&gt;, from the environment or the
+     * system properties.
+     */
+    public static String getProperty(String scheme, String key, String defaultValue) {
+        return CacheConfig.getPropertyValue(COG_RANGE_READER_PREFIX + scheme + "." + key, defaultValue);
+    }
+
+    public static String getScheme(URI uri) {
+        return uri.getScheme() == null ? "file" : uri.getScheme().toLowerCase();
+    }
+}
@@ -0,0 +1,287 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Collects the range requests made for the same source by independent readers over a short window, merges adjacent
+ * and overlapping ranges and sends a single request for each merged range.  Merged ranges are split into sub-range
+ * requests afterwards like any other range, so batching never undoes the splitting of large ranges.  As a response
+ * streams in, the bytes requested by each reader are written straight into that reader's page store.  Tile servers
+ * rendering neighbouring tiles of the same COG at the same time end up sending far fewer requests, at the cost of
+ * delaying each request by up to the batch window.
+ * <p>
+ * A batcher only lives while it has a batch pending.  Once the batch is sent it is removed, so neither the batcher nor
+ * the readers of its batch are kept around.
+ */
+public class RangeRequestBatcher {
+
+    private static final Map<Object, RangeRequestBatcher> BATCHERS = new ConcurrentHashMap<>();
+    private final static Logger LOGGER = Logger.getLogger(RangeRequestBatcher.class.getName());
+
+    protected final Object batchKey;
+    private List<BatchedRange> pending = new ArrayList<>();
+    private boolean flushed;
+
+    protected RangeRequestBatcher(Object batchKey) {
+        this.batchKey = batchKey;
+    }
+
+    public static RangeRequestBatcher forKey(Object batchKey) {
+        return BATCHERS.computeIfAbsent(batchKey, RangeRequestBatcher::new);
+    }
+
+    /**
+     * Adds a range to the pending batch of the key, starting a new batch that is sent once the window has elapsed if
+     * there is none.
+     *
+     * @param batchKey identifies the source, its version and the configuration requests are sent with.  Only ranges
+     *                 submitted with equal keys are batched, since a batch is sent through a single reader
+     * @param rangeReader the reader requesting the range.  The first reader of a batch sends its requests
+     * @param range the inclusive start and end positions to read
+     * @param windowMillis how long a new batch collects ranges before it is sent
+     * @param cancellation completed when the reader's read is cancelled
+     * @return a future completed once the range has been written to the reader's page store
+     */
+    public static CompletableFuture<Void> submit(Object batchKey, HttpRangeReader rangeReader, long[] range,
+                                                 long windowMillis, CompletableFuture<Void> cancellation) {
+        BatchedRange batchedRange = new BatchedRange(rangeReader, range, cancellation);
+        cancellation.thenRun(() -> batchedRange.completion.completeExceptionally(
+                new CancellationException("Read of range " + range[0] + "-" + range[1] + " was cancelled")));
+        while (true) {
+            RangeRequestBatcher batcher = forKey(batchKey);
+            boolean newBatch;
+            synchronized (batcher) {
+                if (batcher.flushed) {
+                    // sent and removed in the meantime, a new batcher is created for the key
+                    continue;
+                }
+                newBatch = batcher.pending.isEmpty();
+                batcher.pending.add(batchedRange);
+            }
+            if (newBatch) {
+                CogExecutors.delayedExecutor(windowMillis, TimeUnit.MILLISECONDS).execute(batcher::flush);
+            }
+            return batchedRange.completion;
+        }
+    }
+
+    /**
+     * Sends the collected ranges, merged and then split, through the reader that started the batch.
+     */
+    protected void flush() {
+        List<BatchedRange> batch;
+        synchronized (this) {
+            batch = pending;
+            flushed = true;
+            BATCHERS.remove(batchKey, this);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        // the requests are only cancelled once every reader in the batch has given up on its range
+        CompletableFuture<Void> cancellation = new CompletableFuture<>();
+        CompletableFuture.allOf(batch.stream().map(batchedRange -> batchedRange.cancellation)
+                .toArray(CompletableFuture<?>[]::new)).thenRun(() -> cancellation.complete(null));
+
+        RangeBuilder rangeBuilder = RangeBuilder.exact();
+        batch.forEach(batchedRange -> rangeBuilder.addTileRange(batchedRange.range[0],
+                batchedRange.range[1] - batchedRange.range[0] + 1));
+        HttpRangeReader leader = batch.get(0).rangeReader;
+        long[][] requests = leader.splitRanges(rangeBuilder.getRanges().toArray(new long[][]{}));
+        LOGGER.fine("Merged " + batch.size() + " range(s) requested for " + leader.uri + " into " + requests.length
+                + " request(s)");
+
+        List<List<CompletableFuture<Void>>> reads = new ArrayList<>(batch.size());
+        batch.forEach(batchedRange -> reads.add(new ArrayList<>()));
+        for (long[] request : requests) {
+            List<BatchedRange> members = new ArrayList<>();
+            for (BatchedRange batchedRange : batch) {
+                if (batchedRange.range[0] <= request[1] && batchedRange.range[1] >= request[0]) {
+                    members.add(batchedRange);
+                }
+            }
+            CompletableFuture<Void> read = leader.send(leader.buildRequest(request),
+                    responseInfo -> bodySubscriber(responseInfo, request, members, cancellation), cancellation)
+                    .thenAccept(leader::checkStatus);
+            for (BatchedRange member : members) {
+                reads.get(batch.indexOf(member)).add(read);
+            }
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            BatchedRange batchedRange = batch.get(i);
+            CompletableFuture.allOf(reads.get(i).toArray(new CompletableFuture<?>[]{}))
+                    .whenComplete((value, throwable) -> batchedRange.complete(throwable));
+        }
+    }
+
+    /**
+     * Chooses how the body of a batched request is consumed.  Error bodies are discarded.
+     *
+     * @param request the requested inclusive start and end positions
+     * @param members the batched ranges overlapping the request
+     */
+    protected HttpResponse.BodySubscriber<Long> bodySubscriber(HttpResponse.ResponseInfo responseInfo, long[] request,
+                                                               List<BatchedRange> members,
+                                                               CompletableFuture<Void> cancellation) {
+        switch (responseInfo.statusCode()) {
+            case 206:
+                long[] contentRange = MultipartByteRangesSubscriber.parseContentRange(
+                        responseInfo.headers().firstValue(HttpRangeReader.CONTENT_RANGE_HEADER).orElse(null));
+                return new BatchBodySubscriber(contentRange != null ? contentRange[0] : request[0], request,
+                        getExpectedEnd(request, members), members, cancellation);
+            case 200:
+                // the server ignored the range header, only the requested window of the file is kept
+                return new BatchBodySubscriber(0, request, getExpectedEnd(request, members), members, cancellation);
+            default:
+                return HttpResponse.BodySubscribers.replacing(0L);
+        }
+    }
+
+    /**
+     * @return the last position of the request the body must reach, i.e. the end of the request or of the file
+     */
+    protected long getExpectedEnd(long[] request, List<BatchedRange> members) {
+        long filesize = members.isEmpty() ? -1 : members.get(0).rangeReader.getFilesize();
+        return filesize > 0 ? Math.min(request[1], filesize - 1) : request[1];
+    }
+
+    /**
+     * A range requested by a reader, waiting for its batch to be read.
+     */
+    protected static class BatchedRange {
+
+        protected final HttpRangeReader rangeReader;
+        protected final long[] range;
+        protected final CompletableFuture<Void> cancellation;
+        protected final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+        protected BatchedRange(HttpRangeReader rangeReader, long[] range, CompletableFuture<Void> cancellation) {
+            this.rangeReader = rangeReader;
+            this.range = range;
+            this.cancellation = cancellation;
+        }
+
+        protected void complete(Throwable throwable) {
+            if (throwable != null) {
+                completion.completeExceptionally(throwable);
+            } else {
+                completion.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Writes the body of a batched request into the page store of every reader whose range it overlaps, as the
+     * buffers arrive.  The body of the response is the number of bytes received within the request.  When the body
+     * does not cover the whole request, the readers whose bytes are missing fail rather than reading zeros.
+     */
+    protected static class BatchBodySubscriber implements HttpResponse.BodySubscriber<Long> {
+
+        protected final long[] request;
+        protected final long start;
+        protected final long expectedEnd;
+        protected final List<BatchedRange> members;
+        protected final CompletableFuture<Void> cancellation;
+        protected final CompletableFuture<Long> result = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+        private long position;
+        private long received;
+
+        /**
+         * @param start the source position of the first byte of the body
+         * @param request the inclusive start and end positions that were requested
+         * @param expectedEnd the last position the body must reach, at most the end of the request
+         */
+        protected BatchBodySubscriber(long start, long[] request, long expectedEnd, List<BatchedRange> members,
+                                      CompletableFuture<Void> cancellation) {
+            this.start = start;
+            this.position = start;
+            this.request = request;
+            this.expectedEnd = expectedEnd;
+            this.members = members;
+            this.cancellation = cancellation;
+        }
+
+        @Override
+        public CompletionStage<Long> getBody() {
+            return result;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            cancellation.whenComplete((value, throwable) -> {
+                subscription.cancel();
+                result.completeExceptionally(new CancellationException("Batched range transfer cancelled"));
+            });
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            if (result.isDone()) {
+                return;
+            }
+            for (ByteBuffer item : items) {
+                int count = item.remaining();
+                long end = position + count - 1;
+                for (BatchedRange member : members) {
+                    long first = Math.max(position, Math.max(request[0], member.range[0]));
+                    long last = Math.min(end, Math.min(request[1], member.range[1]));
+                    if (first <= last && !member.completion.isDone()) {
+                        ByteBuffer slice = item.duplicate();
+                        slice.position(item.position() + (int) (first - position));
+                        slice.limit(slice.position() + (int) (last - first + 1));
+                        member.rangeReader.getStore().write(first, slice, member.cancellation);
+                    }
+                }
+                received += Math.max(0, Math.min(end, request[1]) - Math.max(position, request[0]) + 1);
+                position += count;
+                if (position > request[1]) {
+                    // the rest of the body lies outside the request
+                    subscription.cancel();
+                    complete();
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            complete();
+        }
+
+        protected void complete() {
+            // the body ended early, or started late.  fail the readers whose part of the request was not received
+            for (BatchedRange member : members) {
+                long first = Math.max(request[0], member.range[0]);
+                long last = Math.min(expectedEnd, member.range[1]);
+                if (first <= last && (first < start || last >= position)) {
+                    member.completion.completeExceptionally(new IOException("Response for range " + request[0] + "-"
+                            + request[1] + " of " + member.rangeReader.uri + " only covered " + start + "-"
+                            + (position - 1) + ", missing bytes of range " + member.range[0] + "-"
+                            + member.range[1]));
+                }
+            }
+            result.complete(received);
+        }
+    }
+}
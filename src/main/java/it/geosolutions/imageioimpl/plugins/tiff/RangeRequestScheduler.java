@@ -0,0 +1,224 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import it.geosolutions.imageioimpl.plugins.tiff.stream.CacheConfig;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Schedules range requests so that the number of requests in flight stays within a per-host and a global limit.
+ * Requests over the limit are queued and started as earlier requests complete.  Each host keeps a separate queue per
+ * requester (typically one per RangeReader) and serves those queues round robin, so a single large read cannot starve
+ * the smaller reads submitted after it.
+ */
+public class RangeRequestScheduler {
+
+    // maximum number of range requests in flight across all hosts
+    public static final String COG_HTTP_MAX_REQUESTS = "cog.http.maxRequests";
+
+    // maximum number of range requests in flight to a single host
+    public static final String COG_HTTP_MAX_REQUESTS_PER_HOST = "cog.http.maxRequestsPerHost";
+
+    public static final RangeRequestScheduler DEFAULT = new RangeRequestScheduler(
+            Integer.parseInt(CacheConfig.getPropertyValue(COG_HTTP_MAX_REQUESTS, "256")),
+            Integer.parseInt(CacheConfig.getPropertyValue(COG_HTTP_MAX_REQUESTS_PER_HOST, "64")));
+
+    private final static Logger LOGGER = Logger.getLogger(RangeRequestScheduler.class.getName());
+
+    protected final int maxRequests;
+    protected final int maxRequestsPerHost;
+
+    private final Map<String, HostQueue> hostQueues = new HashMap<>();
+    private int inFlight;
+    private int queued;
+
+    private final LongAdder started = new LongAdder();
+    private final LongAdder totalQueueNanos = new LongAdder();
+    private final AtomicLong maxQueueNanos = new AtomicLong();
+
+    public RangeRequestScheduler(int maxRequests, int maxRequestsPerHost) {
+        this.maxRequests = Math.max(1, maxRequests);
+        this.maxRequestsPerHost = Math.max(1, maxRequestsPerHost);
+    }
+
+    /**
+     * Submits a request.  The supplier is invoked once a slot is available for the host.
+     *
+     * @param host the host the request will be sent to
+     * @param requester the object submitting the request, used for fair queuing between requesters
+     * @param request supplies the future of the actual request once it is allowed to start
+     * @return a future completed with the result of the request
+     */
+    public <T> CompletableFuture<T> submit(String host, Object requester, Supplier<CompletableFuture<T>> request) {
+        Task<T> task = new Task<>(host == null ? "" : host, requester, request);
+        synchronized (this) {
+            hostQueues.computeIfAbsent(task.host, key -> new HostQueue()).add(task);
+            queued++;
+        }
+        dispatch();
+        return task.result;
+    }
+
+    /**
+     * Starts as many queued tasks as the limits allow.  Tasks are chosen while holding the lock but started after it
+     * has been released.
+     */
+    protected void dispatch() {
+        List<Task<?>> toStart = new ArrayList<>();
+        synchronized (this) {
+            boolean startedAny = true;
+            while (inFlight < maxRequests && startedAny) {
+                startedAny = false;
+                for (HostQueue hostQueue : hostQueues.values()) {
+                    if (inFlight >= maxRequests) {
+                        break;
+                    }
+                    if (hostQueue.inFlight >= maxRequestsPerHost) {
+                        continue;
+                    }
+                    Task<?> task = hostQueue.poll();
+                    if (task == null) {
+                        continue;
+                    }
+                    queued--;
+                    if (task.result.isDone()) {
+                        // cancelled while waiting in the queue
+                        continue;
+                    }
+                    hostQueue.inFlight++;
+                    inFlight++;
+                    toStart.add(task);
+                    startedAny = true;
+                }
+            }
+            hostQueues.values().removeIf(hostQueue -> hostQueue.inFlight == 0 && hostQueue.isEmpty());
+        }
+        toStart.forEach(this::start);
+    }
+
+    protected <T> void start(Task<T> task) {
+        long queueNanos = System.nanoTime() - task.enqueued;
+        started.increment();
+        totalQueueNanos.add(queueNanos);
+        maxQueueNanos.accumulateAndGet(queueNanos, Math::max);
+        if (queueNanos > TimeUnit.MILLISECONDS.toNanos(100)) {
+            LOGGER.fine("Range request to " + task.host + " waited " + TimeUnit.NANOSECONDS.toMillis(queueNanos)
+                    + "ms in queue");
+        }
+
+        CompletableFuture<T> future;
+        try {
+            future = task.request.get();
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((value, throwable) -> {
+            release(task.host);
+            if (throwable != null) {
+                task.result.completeExceptionally(throwable);
+            } else {
+                task.result.complete(value);
+            }
+        });
+    }
+
+    protected void release(String host) {
+        synchronized (this) {
+            inFlight--;
+            HostQueue hostQueue = hostQueues.get(host);
+            if (hostQueue != null) {
+                hostQueue.inFlight--;
+            }
+        }
+        dispatch();
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    /**
+     * @return the total number of requests started by this scheduler
+     */
+    public long getStartedCount() {
+        return started.sum();
+    }
+
+    public double getAverageQueueTimeMillis() {
+        long count = started.sum();
+        return count == 0 ? 0 : totalQueueNanos.sum() / (double) count / 1_000_000d;
+    }
+
+    public double getMaxQueueTimeMillis() {
+        return maxQueueNanos.get() / 1_000_000d;
+    }
+
+    private static class Task<T> {
+
+        private final String host;
+        private final Object requester;
+        private final Supplier<CompletableFuture<T>> request;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final long enqueued = System.nanoTime();
+
+        Task(String host, Object requester, Supplier<CompletableFuture<T>> request) {
+            this.host = host;
+            this.requester = requester;
+            this.request = request;
+        }
+    }
+
+    /**
+     * Queued tasks for a single host, with one queue per requester served round robin.
+     */
+    private static class HostQueue {
+
+        private final Map<Object, Deque<Task<?>>> requesterQueues = new LinkedHashMap<>();
+        private final Deque<Object> requesters = new ArrayDeque<>();
+        private int inFlight;
+
+        void add(Task<?> task) {
+            Deque<Task<?>> queue = requesterQueues.get(task.requester);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                requesterQueues.put(task.requester, queue);
+                requesters.addLast(task.requester);
+            }
+            queue.addLast(task);
+        }
+
+        Task<?> poll() {
+            Object requester = requesters.pollFirst();
+            if (requester == null) {
+                return null;
+            }
+            Deque<Task<?>> queue = requesterQueues.get(requester);
+            Task<?> task = queue.pollFirst();
+            if (queue.isEmpty()) {
+                requesterQueues.remove(requester);
+            } else {
+                requesters.addLast(requester);
+            }
+            return task;
+        }
+
+        boolean isEmpty() {
+            return requesters.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The tiles needed by a single read, computed by CogImageReader and handed to the stream's readRanges.  A plan is
+ * immutable and only describes its own read, so repeated reads on a stream only fetch their own tiles and concurrent
+ * reads do not see each other's tiles.  Each plan carries the cancellation of its read, so aborting a read only stops
+ * the requests made for it.
+ */
+public class ReadPlan {
+
+    protected final List<CogTileInfo.TileRange> tileRanges;
+    protected final long firstTileOffset;
+    protected final CompletableFuture<Void> cancellation;
+    protected final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+    public ReadPlan(List<CogTileInfo.TileRange> tileRanges) {
+        this(tileRanges, new CompletableFuture<>());
+    }
+
+    /**
+     * @param tileRanges the ranges of the tiles to read.  Tiles without any bytes are left out
+     * @param cancellation completed when the read is aborted
+     */
+    public ReadPlan(List<CogTileInfo.TileRange> tileRanges, CompletableFuture<Void> cancellation) {
+        this.cancellation = cancellation;
+        List<CogTileInfo.TileRange> sorted = new ArrayList<>(tileRanges.size());
+        for (CogTileInfo.TileRange tileRange : tileRanges) {
+            if (tileRange.getByteLength() > 0) {
+                sorted.add(tileRange);
+            }
+        }
+        sorted.sort(Comparator.comparingLong(CogTileInfo.TileRange::getStart));
+        this.tileRanges = Collections.unmodifiableList(sorted);
+        firstTileOffset = sorted.isEmpty() ? Long.MAX_VALUE : sorted.get(0).getStart();
+    }
+
+    /**
+     * @return the tile ranges, sorted by offset
+     */
+    public List<CogTileInfo.TileRange> getTileRanges() {
+        return tileRanges;
+    }
+
+    /**
+     * @return the offset of the first tile, or Long.MAX_VALUE if the plan is empty
+     */
+    public long getFirstTileOffset() {
+        return firstTileOffset;
+    }
+
+    /**
+     * @return the future completed when the read is aborted
+     */
+    public CompletableFuture<Void> getCancellation() {
+        return cancellation;
+    }
+
+    /**
+     * @return the future completed once the read has decoded its tiles, or failed
+     */
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * Marks the read as ended, so the stream can release whatever it still holds for it.
+     */
+    public void complete() {
+        completion.complete(null);
+    }
+
+    public boolean isEmpty() {
+        return tileRanges.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return tileRanges.size() + " tile(s) starting at " + firstTileOffset;
+    }
+}
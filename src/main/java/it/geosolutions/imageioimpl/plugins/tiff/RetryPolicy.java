@@ -0,0 +1,84 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import it.geosolutions.imageioimpl.plugins.tiff.stream.CacheConfig;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether a failed range request should be retried and how long to wait before doing so.  Range GETs are
+ * idempotent, so server errors, throttling responses and I/O failures (including timeouts) are retried using
+ * exponential backoff with full jitter.
+ */
+public class RetryPolicy {
+
+    // maximum number of attempts per request, including the first one
+    public static final String COG_HTTP_MAX_ATTEMPTS = "cog.http.maxAttempts";
+
+    // base backoff delay in milliseconds
+    public static final String COG_HTTP_RETRY_BASE_DELAY = "cog.http.retryBaseDelay";
+
+    // maximum backoff delay in milliseconds
+    public static final String COG_HTTP_RETRY_MAX_DELAY = "cog.http.retryMaxDelay";
+
+    public static final RetryPolicy DEFAULT = new RetryPolicy(
+            Integer.parseInt(CacheConfig.getPropertyValue(COG_HTTP_MAX_ATTEMPTS, "3")),
+            Long.parseLong(CacheConfig.getPropertyValue(COG_HTTP_RETRY_BASE_DELAY, "100")),
+            Long.parseLong(CacheConfig.getPropertyValue(COG_HTTP_RETRY_MAX_DELAY, "2000")));
+
+    protected final int maxAttempts;
+    protected final long baseDelay;
+    protected final long maxDelay;
+
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelay = Math.max(0, baseDelay);
+        this.maxDelay = Math.max(this.baseDelay, maxDelay);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @return true for server errors, throttling and request timeouts
+     */
+    public boolean isRetryable(int statusCode) {
+        return statusCode >= 500 || statusCode == 429 || statusCode == 408;
+    }
+
+    /**
+     * @return true for I/O failures, including connect and request timeouts.  Cancellations are never retried.
+     */
+    public boolean isRetryable(Throwable throwable) {
+        Throwable cause = unwrap(throwable);
+        return cause instanceof IOException && !(cause instanceof HttpRangeException);
+    }
+
+    /**
+     * @param attempt the attempt that just failed, starting at 1
+     * @return true if another attempt should be made
+     */
+    public boolean shouldRetry(int attempt) {
+        return attempt < maxAttempts;
+    }
+
+    /**
+     * @param attempt the attempt that just failed, starting at 1
+     * @return a random delay between 0 and the exponential backoff for the attempt, capped at the max delay
+     */
+    public long getDelayMillis(int attempt) {
+        long backoff = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 20));
+        return backoff <= 0 ? 0 : ThreadLocalRandom.current().nextLong(backoff + 1);
+    }
+
+    public static Throwable unwrap(Throwable throwable) {
+        while ((throwable instanceof CompletionException || throwable instanceof ExecutionException)
+                && throwable.getCause() != null) {
+            throwable = throwable.getCause();
+        }
+        return throwable;
+    }
+}
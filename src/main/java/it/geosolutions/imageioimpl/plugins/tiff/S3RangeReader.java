@@ -0,0 +1,280 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import it.geosolutions.imageioimpl.plugins.tiff.stream.CacheConfig;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * RangeReader for {@code s3://bucket/key} sources.  Range requests are signed with AWS Signature Version 4, so private
+ * objects can be read without presigned URLs, and are sent through the same pooled clients, scheduler and retry logic
+ * as {@link HttpRangeReader}.  When no credentials are configured requests are sent unsigned, which works for public
+ * buckets.
+ * <p>
+ * Any S3 compatible server can be used by setting {@link #COG_S3_ENDPOINT}.
+ */
+public class S3RangeReader extends HttpRangeReader {
+
+    // region of the bucket. defaults to AWS_REGION or us-east-1
+    public static final String COG_S3_REGION = "cog.s3.region";
+
+    // endpoint of an S3 compatible server, e.g. http://localhost:9000. defaults to AWS
+    public static final String COG_S3_ENDPOINT = "cog.s3.endpoint";
+
+    // whether the bucket is part of the path rather than the host name. defaults to true when an endpoint is set
+    public static final String COG_S3_PATH_STYLE = "cog.s3.pathStyle";
+
+    // access key id. defaults to AWS_ACCESS_KEY_ID
+    public static final String COG_S3_ACCESS_KEY_ID = "cog.s3.accessKeyId";
+
+    // secret access key. defaults to AWS_SECRET_ACCESS_KEY
+    public static final String COG_S3_SECRET_ACCESS_KEY = "cog.s3.secretAccessKey";
+
+    // session token for temporary credentials. defaults to AWS_SESSION_TOKEN
+    public static final String COG_S3_SESSION_TOKEN = "cog.s3.sessionToken";
+
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String SERVICE = "s3";
+    private static final String EMPTY_PAYLOAD_SHA256 = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+    private static final DateTimeFormatter AMZ_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+    private final static Logger LOGGER = Logger.getLogger(S3RangeReader.class.getName());
+
+    protected final String bucket;
+    protected final String key;
+    protected final String region;
+    protected String accessKeyId;
+    protected String secretAccessKey;
+    protected String sessionToken;
+
+    public S3RangeReader(String s3Uri) {
+        this(URI.create(s3Uri));
+    }
+
+    public S3RangeReader(URI s3Uri) {
+        super(toHttpUri(s3Uri));
+        bucket = s3Uri.getHost();
+        key = s3Uri.getPath().startsWith("/") ? s3Uri.getPath().substring(1) : s3Uri.getPath();
+        region = getRegion();
+        accessKeyId = getCredential(COG_S3_ACCESS_KEY_ID, "AWS_ACCESS_KEY_ID");
+        secretAccessKey = getCredential(COG_S3_SECRET_ACCESS_KEY, "AWS_SECRET_ACCESS_KEY");
+        sessionToken = getCredential(COG_S3_SESSION_TOKEN, "AWS_SESSION_TOKEN");
+        if (accessKeyId == null || secretAccessKey == null) {
+            LOGGER.fine("No S3 credentials configured, sending unsigned requests for " + s3Uri);
+        }
+    }
+
+    public void setCredentials(String accessKeyId, String secretAccessKey, String sessionToken) {
+        this.accessKeyId = accessKeyId;
+        this.secretAccessKey = secretAccessKey;
+        this.sessionToken = sessionToken;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    protected HttpRequest.Builder newRequestBuilder(String rangeHeader) {
+        HttpRequest.Builder builder = super.newRequestBuilder(rangeHeader);
+        if (accessKeyId != null && secretAccessKey != null) {
+            sign(builder, rangeHeader, ZonedDateTime.now(ZoneOffset.UTC));
+        }
+        return builder;
+    }
+
+    /**
+     * Adds the SigV4 authorization headers for a GET of the object.  The host header is set by the HttpClient from
+     * the request URI, so it is signed but not added.
+     */
+    protected void sign(HttpRequest.Builder builder, String rangeHeader, ZonedDateTime now) {
+        String amzDate = AMZ_DATE_FORMAT.format(now);
+        String date = amzDate.substring(0, 8);
+        String scope = date + "/" + region + "/" + SERVICE + "/aws4_request";
+
+        // headers must be listed in lower case and sorted by name
+        StringBuilder canonicalHeaders = new StringBuilder()
+                .append("host:").append(getHostHeader()).append('\n')
+                .append("range:").append(rangeHeader).append('\n')
+                .append("x-amz-content-sha256:").append(EMPTY_PAYLOAD_SHA256).append('\n')
+                .append("x-amz-date:").append(amzDate).append('\n');
+        String signedHeaders = "host;range;x-amz-content-sha256;x-amz-date";
+        if (sessionToken != null) {
+            canonicalHeaders.append("x-amz-security-token:").append(sessionToken).append('\n');
+            signedHeaders += ";x-amz-security-token";
+        }
+
+        String canonicalRequest = "GET\n"
+                + toCanonicalPath(uri.getRawPath()) + "\n"
+                + "\n"
+                + canonicalHeaders + "\n"
+                + signedHeaders + "\n"
+                + EMPTY_PAYLOAD_SHA256;
+        String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n" + hex(sha256(canonicalRequest));
+
+        byte[] signingKey = hmac(("AWS4" + secretAccessKey).getBytes(StandardCharsets.UTF_8), date);
+        signingKey = hmac(signingKey, region);
+        signingKey = hmac(signingKey, SERVICE);
+        signingKey = hmac(signingKey, "aws4_request");
+        String signature = hex(hmac(signingKey, stringToSign));
+
+        builder.header("x-amz-date", amzDate)
+                .header("x-amz-content-sha256", EMPTY_PAYLOAD_SHA256)
+                .header("Authorization", ALGORITHM + " Credential=" + accessKeyId + "/" + scope
+                        + ", SignedHeaders=" + signedHeaders + ", Signature=" + signature);
+        if (sessionToken != null) {
+            builder.header("x-amz-security-token", sessionToken);
+        }
+    }
+
+    /**
+     * Requests are signed with the credentials of the reader sending them, so they are part of the batch key.
+     */
+    @Override
+    protected List<Object> getBatchKey() {
+        List<Object> batchKey = new ArrayList<>(super.getBatchKey());
+        batchKey.addAll(Arrays.asList(region, accessKeyId, secretAccessKey, sessionToken));
+        return batchKey;
+    }
+
+    protected String getHostHeader() {
+        int port = uri.getPort();
+        boolean defaultPort = port == -1
+                || ("https".equals(uri.getScheme()) && port == 443)
+                || ("http".equals(uri.getScheme()) && port == 80);
+        return defaultPort ? uri.getHost() : uri.getHost() + ":" + port;
+    }
+
+    /**
+     * @param s3Uri an s3://bucket/key URI
+     * @return the HTTP(S) URI of the object, using either virtual-hosted or path style addressing
+     */
+    public static URI toHttpUri(URI s3Uri) {
+        String bucket = s3Uri.getHost();
+        String key = s3Uri.getPath().startsWith("/") ? s3Uri.getPath().substring(1) : s3Uri.getPath();
+        String endpoint = CacheConfig.getPropertyValue(COG_S3_ENDPOINT, null);
+        boolean pathStyle = Boolean.parseBoolean(
+                CacheConfig.getPropertyValue(COG_S3_PATH_STYLE, Boolean.toString(endpoint != null)));
+        if (endpoint == null) {
+            endpoint = "https://s3." + getRegion() + ".amazonaws.com";
+        }
+        URI endpointUri = URI.create(endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint);
+        String authority = pathStyle ? endpointUri.getRawAuthority() : bucket + "." + endpointUri.getRawAuthority();
+        String path = (pathStyle ? "/" + encode(bucket) : "") + "/" + encode(key);
+        return URI.create(endpointUri.getScheme() + "://" + authority + path);
+    }
+
+    protected static String getRegion() {
+        String region = System.getenv("AWS_REGION");
+        return CacheConfig.getPropertyValue(COG_S3_REGION, region != null ? region : "us-east-1");
+    }
+
+    private static String getCredential(String key, String awsEnvironmentKey) {
+        return CacheConfig.getPropertyValue(key, System.getenv(awsEnvironmentKey));
+    }
+
+    /**
+     * URI encodes every character except the unreserved characters and '/', as required by SigV4 for object keys.
+     */
+    protected static String encode(String value) {
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~' || c == '/') {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xf, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+            }
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * Decodes each segment of the path and encodes it again with {@link #encode}, so the canonical request matches
+     * what S3 computes whatever escaping the URI used, e.g. for keys containing '+', '=', '@' or '!'.  S3 object paths
+     * are encoded only once.
+     *
+     * @param rawPath the raw path of the request URI
+     * @return the canonical URI of the SigV4 canonical request
+     */
+    protected static String toCanonicalPath(String rawPath) {
+        if (rawPath == null || rawPath.isEmpty()) {
+            return "/";
+        }
+        StringBuilder canonicalPath = new StringBuilder();
+        String[] segments = rawPath.split("/", -1);
+        for (int i = 0; i < segments.length; i++) {
+            if (i > 0) {
+                canonicalPath.append('/');
+            }
+            canonicalPath.append(encode(decode(segments[i])).replace("/", "%2F"));
+        }
+        return canonicalPath.toString();
+    }
+
+    /**
+     * Percent-decodes a URI path segment.  Unlike form decoding, '+' is kept as is.
+     */
+    protected static String decode(String segment) {
+        if (segment.indexOf('%') < 0) {
+            return segment;
+        }
+        byte[] bytes = segment.getBytes(StandardCharsets.UTF_8);
+        byte[] decoded = new byte[bytes.length];
+        int length = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            int high = i + 2 < bytes.length ? Character.digit(bytes[i + 1], 16) : -1;
+            int low = high >= 0 ? Character.digit(bytes[i + 2], 16) : -1;
+            if (bytes[i] == '%' && low >= 0) {
+                decoded[length++] = (byte) ((high << 4) | low);
+                i += 2;
+            } else {
+                decoded[length++] = bytes[i];
+            }
+        }
+        return new String(decoded, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] sha256(String value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String value) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(value.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
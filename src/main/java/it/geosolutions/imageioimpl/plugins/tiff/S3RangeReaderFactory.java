@@ -0,0 +1,23 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import java.net.URI;
+import java.util.Set;
+
+/**
+ * Creates {@link S3RangeReader} instances for s3 sources.  Accepts the same per-scheme properties as
+ * {@link HttpRangeReaderFactory}, e.g. {@code cog.rangeReader.s3.maxRangeSize}.
+ */
+public class S3RangeReaderFactory extends HttpRangeReaderFactory {
+
+    private static final Set<String> SCHEMES = Set.of("s3");
+
+    @Override
+    public Set<String> getSchemes() {
+        return SCHEMES;
+    }
+
+    @Override
+    public RangeReader create(URI uri) {
+        return configure(new S3RangeReader(uri), RangeReaderRegistry.getScheme(uri));
+    }
+}
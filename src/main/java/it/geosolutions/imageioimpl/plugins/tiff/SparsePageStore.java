@@ -0,0 +1,312 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import it.geosolutions.imageioimpl.plugins.tiff.stream.CacheConfig;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sparse backing store for the bytes fetched by a {@link RangeReader}.  The source is divided into fixed size pages
+ * and a page is only allocated once a fetched range touches it, so the memory held by an open stream is proportional
+ * to the number of bytes actually read rather than to the size of the file.  The bytes written to each page are
+ * tracked, and reading bytes that have never been written, or whose pages were released, fails rather than returning
+ * zeros, so a short response or a cancelled read cannot be mistaken for data.
+ */
+public class SparsePageStore {
+
+    // size in bytes of each page
+    public static final String COG_STORE_PAGE_SIZE = "cog.store.pageSize";
+
+    // whether pages should be allocated off heap using direct byte buffers
+    public static final String COG_STORE_OFF_HEAP = "cog.store.offHeap";
+
+    public static final int DEFAULT_PAGE_SIZE = 65536;
+
+    protected final int pageSize;
+    protected final boolean offHeap;
+    protected final Map<Long, ByteBuffer> pages = new ConcurrentHashMap<>();
+    // the writer of each page, e.g. the cancellation of the read that fetched it, or SHARED once several wrote to it
+    protected final Map<Long, Object> writers = new ConcurrentHashMap<>();
+    // the written bytes of each page, as start to end offsets.  replaced rather than modified, so it is read unlocked
+    protected final Map<Long, NavigableMap<Integer, Integer>> written = new ConcurrentHashMap<>();
+    protected final NavigableMap<Integer, Integer> fullPage;
+    private static final Object SHARED = new Object();
+    private static final Object UNKNOWN_WRITER = new Object();
+
+    public SparsePageStore() {
+        this(Integer.parseInt(CacheConfig.getPropertyValue(COG_STORE_PAGE_SIZE, Integer.toString(DEFAULT_PAGE_SIZE))),
+                Boolean.parseBoolean(CacheConfig.getPropertyValue(COG_STORE_OFF_HEAP, "false")));
+    }
+
+    public SparsePageStore(int pageSize, boolean offHeap) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        }
+        this.pageSize = pageSize;
+        this.offHeap = offHeap;
+        fullPage = Collections.unmodifiableNavigableMap(new TreeMap<>(Collections.singletonMap(0, pageSize)));
+    }
+
+    public void write(long position, byte[] bytes) {
+        write(position, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Copies the supplied bytes into the pages covering the given source position, allocating pages as needed.
+     *
+     * @param position the position in the source of the first byte
+     * @param bytes the bytes to write
+     * @param offset the offset of the first byte to write in the array
+     * @param length the number of bytes to write
+     */
+    public void write(long position, byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            int pageOffset = (int) (position % pageSize);
+            int count = Math.min(length, pageSize - pageOffset);
+            ByteBuffer page = getOrCreatePage(position / pageSize, null);
+            ByteBuffer view = page.duplicate();
+            view.position(pageOffset);
+            view.put(bytes, offset, count);
+            markWritten(position / pageSize, page, pageOffset, pageOffset + count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Copies the remaining bytes of the supplied buffer into the pages covering the given source position, allocating
+     * pages as needed.  The position of the buffer is advanced to its limit.
+     *
+     * @param position the position in the source of the first byte
+     * @param bytes the bytes to write
+     */
+    public void write(long position, ByteBuffer bytes) {
+        write(position, bytes, null);
+    }
+
+    /**
+     * @param writer identifies the read writing the bytes, so that its pages can be released when it is cancelled.
+     *               May be null
+     */
+    public void write(long position, ByteBuffer bytes, Object writer) {
+        while (bytes.hasRemaining()) {
+            int pageOffset = (int) (position % pageSize);
+            int count = Math.min(bytes.remaining(), pageSize - pageOffset);
+            ByteBuffer page = getOrCreatePage(position / pageSize, writer);
+            ByteBuffer view = page.duplicate();
+            view.position(pageOffset);
+            ByteBuffer chunk = bytes.duplicate();
+            chunk.limit(chunk.position() + count);
+            view.put(chunk);
+            markWritten(position / pageSize, page, pageOffset, pageOffset + count);
+            bytes.position(bytes.position() + count);
+            position += count;
+        }
+    }
+
+    /**
+     * Copies bytes starting at the given source position into the destination array.
+     *
+     * @param position the position in the source of the first byte to read
+     * @param dest the destination array
+     * @param offset the offset in the destination array
+     * @param length the number of bytes to read
+     * @throws UncheckedIOException if any of the bytes has not been written
+     */
+    public void read(long position, byte[] dest, int offset, int length) {
+        while (length > 0) {
+            int pageOffset = (int) (position % pageSize);
+            int count = Math.min(length, pageSize - pageOffset);
+            // the written bytes are checked before the page is looked up, as released pages are unmarked first
+            ByteBuffer page = isWritten(position / pageSize, pageOffset, pageOffset + count)
+                    ? pages.get(position / pageSize) : null;
+            if (page == null) {
+                throw new UncheckedIOException(new IOException("Bytes " + position + "-" + (position + count - 1)
+                        + " have not been fetched"));
+            }
+            page = page.duplicate();
+            page.position(pageOffset);
+            page.get(dest, offset, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    public byte[] read(long position, int length) {
+        byte[] bytes = new byte[length];
+        read(position, bytes, 0, length);
+        return bytes;
+    }
+
+    /**
+     * @return whether every byte of the given range has been written
+     */
+    public boolean isWritten(long position, long length) {
+        long end = position + length;
+        while (position < end) {
+            int pageOffset = (int) (position % pageSize);
+            int count = (int) Math.min(end - position, pageSize - pageOffset);
+            if (!isWritten(position / pageSize, pageOffset, pageOffset + count)) {
+                return false;
+            }
+            position += count;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of bytes currently allocated by this store
+     */
+    public long getAllocatedBytes() {
+        return (long) pages.size() * pageSize;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Discards all pages.  Subsequent reads fail until the ranges are written again.
+     */
+    public void clear() {
+        new ArrayList<>(pages.keySet()).forEach(this::removePage);
+    }
+
+    /**
+     * Releases the pages lying entirely within the given range, e.g. the pages of an aborted read.  Pages that also
+     * hold bytes outside the range are kept.
+     *
+     * @param start the first position of the range
+     * @param end the last position of the range, inclusive
+     */
+    public void release(long start, long end) {
+        getPagesWithin(start, end).forEach(this::removePage);
+    }
+
+    /**
+     * Releases the pages lying entirely within the given range that were only written by the given writer, e.g. the
+     * pages of a cancelled read.  Pages also written by another read, even one that has completed, are kept.
+     */
+    public void release(long start, long end, Object writer) {
+        if (writer == null) {
+            return;
+        }
+        for (long pageIndex : getPagesWithin(start, end)) {
+            if (writers.get(pageIndex) == writer) {
+                written.compute(pageIndex, (index, ranges) -> {
+                    if (writers.remove(index, writer)) {
+                        pages.remove(index);
+                        return null;
+                    }
+                    return ranges;
+                });
+            }
+        }
+    }
+
+    /**
+     * Releases every page that starts at or after the given position, e.g. the pages of an aborted read, while keeping
+     * the pages holding the header.
+     */
+    public void releaseFrom(long position) {
+        getPagesWithin(position, Long.MAX_VALUE).forEach(this::removePage);
+    }
+
+    /**
+     * @return the indices of the allocated pages lying entirely within the given range
+     */
+    protected List<Long> getPagesWithin(long start, long end) {
+        long firstPage = (start + pageSize - 1) / pageSize;
+        // computed without overflowing when the range ends at Long.MAX_VALUE
+        long lastPage = Math.floorDiv(end - pageSize + 1, pageSize);
+        List<Long> pageIndices = new ArrayList<>();
+        for (long pageIndex : pages.keySet()) {
+            if (pageIndex >= firstPage && pageIndex <= lastPage) {
+                pageIndices.add(pageIndex);
+            }
+        }
+        return pageIndices;
+    }
+
+    /**
+     * Unmarks the written bytes of a page before discarding it, so concurrent reads never see a released page as
+     * written.
+     */
+    protected void removePage(long pageIndex) {
+        written.compute(pageIndex, (index, ranges) -> {
+            pages.remove(index);
+            writers.remove(index);
+            return null;
+        });
+    }
+
+    /**
+     * Marks bytes of a page as written, merging them with the bytes written earlier.  Nothing is marked if the page was
+     * released while the bytes were copied into it.
+     *
+     * @param start the offset of the first written byte in the page
+     * @param end the offset after the last written byte in the page
+     */
+    protected void markWritten(long pageIndex, ByteBuffer page, int start, int end) {
+        written.compute(pageIndex, (index, ranges) -> {
+            if (pages.get(index) != page) {
+                return ranges;
+            }
+            if (ranges == fullPage) {
+                return ranges;
+            }
+            TreeMap<Integer, Integer> merged = ranges == null ? new TreeMap<>() : new TreeMap<>(ranges);
+            int mergedStart = start;
+            int mergedEnd = end;
+            Map.Entry<Integer, Integer> previous = merged.floorEntry(start);
+            if (previous != null && previous.getValue() >= start) {
+                mergedStart = previous.getKey();
+                mergedEnd = Math.max(mergedEnd, previous.getValue());
+            }
+            NavigableMap<Integer, Integer> overlapped = merged.subMap(mergedStart, true, mergedEnd, true);
+            for (int overlappedEnd : overlapped.values()) {
+                mergedEnd = Math.max(mergedEnd, overlappedEnd);
+            }
+            overlapped.clear();
+            if (mergedStart == 0 && mergedEnd == pageSize) {
+                return fullPage;
+            }
+            merged.put(mergedStart, mergedEnd);
+            return merged;
+        });
+    }
+
+    /**
+     * @return whether every byte between the given offsets of a page has been written
+     */
+    protected boolean isWritten(long pageIndex, int start, int end) {
+        NavigableMap<Integer, Integer> ranges = written.get(pageIndex);
+        if (ranges == null) {
+            return false;
+        }
+        Map.Entry<Integer, Integer> range = ranges.floorEntry(start);
+        return range != null && range.getValue() >= end;
+    }
+
+    protected ByteBuffer getOrCreatePage(long pageIndex, Object writer) {
+        Object newWriter = writer == null ? UNKNOWN_WRITER : writer;
+        writers.merge(pageIndex, newWriter, (current, next) -> current == next ? current : SHARED);
+        return pages.computeIfAbsent(pageIndex,
+                index -> offHeap ? ByteBuffer.allocateDirect(pageSize) : ByteBuffer.allocate(pageSize));
+    }
+
+}
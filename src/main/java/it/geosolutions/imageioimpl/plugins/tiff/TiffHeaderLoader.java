@@ -0,0 +1,284 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import it.geosolutions.imageioimpl.plugins.tiff.stream.CacheConfig;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Loads the header of a (Big)TIFF file, i.e. every IFD along with the out-of-line values referenced by its entries.
+ * Rather than guessing a fixed header size, the loader reads a first block, walks the IFD chain and only issues
+ * follow-up range requests when an IFD or one of its value arrays extends past the bytes read so far.  COGs store all
+ * IFDs and their arrays ahead of the image data, so the header is always loaded as a single contiguous block starting
+ * at position 0.
+ * <p>
+ * The size of each loaded header is remembered per host and path prefix, so that files produced by the same pipeline
+ * are usually opened with a single request.
+ * <p>
+ * When a lazy array threshold is set, tile and strip offset and byte count arrays of at least that many bytes are left
+ * out of the header and returned as {@link LazyTiffArray}s, whose entries are fetched only for the tiles being read.
+ */
+public class TiffHeaderLoader {
+
+    // size in bytes of the first block read when nothing has been learned about the source's prefix
+    public static final String COG_HEADER_INITIAL_SIZE = "cog.header.initialSize";
+
+    // maximum size in bytes the header may grow to
+    public static final String COG_HEADER_MAX_SIZE = "cog.header.maxSize";
+
+    // tile offset and byte count arrays of at least this many bytes are loaded lazily. 0 always loads them
+    public static final String COG_HEADER_LAZY_ARRAY_THRESHOLD = "cog.header.lazyArrayThreshold";
+
+    // TileOffsets, TileByteCounts, StripOffsets and StripByteCounts
+    private static final Set<Integer> TILE_ARRAY_TAGS = Set.of(324, 325, 273, 279);
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_IFDS = 1024;
+    private static final Map<String, Integer> LEARNED_SIZES = new ConcurrentHashMap<>();
+    private final static Logger LOGGER = Logger.getLogger(TiffHeaderLoader.class.getName());
+
+    protected final URI uri;
+    protected final RangeReader rangeReader;
+    protected final int initialSize;
+    protected final long maxSize;
+
+    protected long lazyArrayThreshold;
+    protected int headerLength;
+    protected ByteOrder byteOrder;
+    protected boolean bigTiff;
+    // a header loaded earlier, walked instead of reading from the source
+    protected byte[] loadedHeader;
+    protected final List<LazyTiffArray> lazyArrays = new ArrayList<>();
+
+    public TiffHeaderLoader(URI uri, RangeReader rangeReader) {
+        this(uri, rangeReader,
+                Integer.parseInt(CacheConfig.getPropertyValue(COG_HEADER_INITIAL_SIZE, "16384")),
+                Long.parseLong(CacheConfig.getPropertyValue(COG_HEADER_MAX_SIZE, Integer.toString(64 * 1048576))));
+    }
+
+    public TiffHeaderLoader(URI uri, RangeReader rangeReader, int initialSize, long maxSize) {
+        this.uri = uri;
+        this.rangeReader = rangeReader;
+        this.initialSize = initialSize;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Reads the header and any IFD bytes that lie beyond the first block.
+     *
+     * @return the number of bytes, starting at position 0, that have been read
+     * @throws IOException if a range request fails
+     */
+    public int load() throws IOException {
+        String prefix = getPrefix(uri);
+        int firstBlockSize = LEARNED_SIZES.getOrDefault(prefix, initialSize);
+        headerLength = rangeReader.readHeader(firstBlockSize).length;
+        LOGGER.fine("Read header block of " + headerLength + " bytes for " + uri);
+
+        try {
+            walkIfds();
+        } catch (IllegalStateException e) {
+            LOGGER.warning("Unable to walk IFDs of " + uri + ", using the first " + headerLength + " bytes as the header: "
+                    + e.getMessage());
+        }
+
+        LEARNED_SIZES.merge(prefix, roundUp(headerLength), Math::max);
+        return headerLength;
+    }
+
+    /**
+     * Walks the IFDs of a header loaded earlier, e.g. taken from a cache, to find the arrays to load lazily.  Nothing
+     * is read from the source.
+     *
+     * @param header the header bytes, starting at position 0
+     */
+    public void load(byte[] header) {
+        loadedHeader = header;
+        headerLength = header.length;
+        try {
+            walkIfds();
+        } catch (IllegalStateException | IOException e) {
+            LOGGER.warning("Unable to walk IFDs of the loaded header of " + uri + ": " + e.getMessage());
+        }
+    }
+
+    public int getHeaderLength() {
+        return headerLength;
+    }
+
+    public void setLazyArrayThreshold(long lazyArrayThreshold) {
+        this.lazyArrayThreshold = lazyArrayThreshold;
+    }
+
+    /**
+     * @return the arrays that were left out of the header, once loaded
+     */
+    public List<LazyTiffArray> getLazyArrays() {
+        return lazyArrays;
+    }
+
+    protected void walkIfds() throws IOException {
+        ByteBuffer header = read(0, 16);
+        if (header.get(0) == 'I' && header.get(1) == 'I') {
+            byteOrder = ByteOrder.LITTLE_ENDIAN;
+        } else if (header.get(0) == 'M' && header.get(1) == 'M') {
+            byteOrder = ByteOrder.BIG_ENDIAN;
+        } else {
+            throw new IllegalStateException("not a TIFF file");
+        }
+        header.order(byteOrder);
+        int magic = header.getShort(2) & 0xffff;
+        if (magic != 42 && magic != 43) {
+            throw new IllegalStateException("unknown TIFF magic number " + magic);
+        }
+        bigTiff = magic == 43;
+
+        long ifdOffset = bigTiff ? header.getLong(8) : header.getInt(4) & 0xffffffffL;
+        int countSize = bigTiff ? 8 : 2;
+        int entrySize = bigTiff ? 20 : 12;
+        int valueSize = bigTiff ? 8 : 4;
+        long extent = headerLength;
+        Set<Long> visited = new HashSet<>();
+
+        while (ifdOffset != 0 && visited.add(ifdOffset) && visited.size() <= MAX_IFDS) {
+            int imageIndex = visited.size() - 1;
+            if (ifdOffset < 0) {
+                throw new IllegalStateException("invalid IFD offset " + ifdOffset);
+            }
+            ensure(ifdOffset + countSize);
+            ByteBuffer countBuffer = read(ifdOffset, countSize);
+            long entryCount = bigTiff ? countBuffer.getLong(0) : countBuffer.getShort(0) & 0xffff;
+            // a corrupt count would overflow the size of the IFD
+            if (entryCount < 0
+                    || entryCount > (Math.min(maxSize, Integer.MAX_VALUE) - countSize - valueSize) / entrySize) {
+                throw new IllegalStateException("IFD at " + ifdOffset + " has an invalid entry count of " + entryCount);
+            }
+            long ifdEnd = ifdOffset + countSize + entryCount * entrySize + valueSize;
+            ensure(ifdEnd);
+
+            ByteBuffer ifd = read(ifdOffset + countSize, (int) (entryCount * entrySize + valueSize));
+            for (int i = 0; i < entryCount; i++) {
+                int entry = i * entrySize;
+                int tag = ifd.getShort(entry) & 0xffff;
+                int type = ifd.getShort(entry + 2) & 0xffff;
+                long count = bigTiff ? ifd.getLong(entry + 4) : ifd.getInt(entry + 4) & 0xffffffffL;
+                long size = count * getTypeSize(type);
+                if (size > valueSize) {
+                    long valueOffset = bigTiff ? ifd.getLong(entry + 12) : ifd.getInt(entry + 8) & 0xffffffffL;
+                    if (lazyArrayThreshold > 0 && size >= lazyArrayThreshold && TILE_ARRAY_TAGS.contains(tag)) {
+                        lazyArrays.add(createLazyArray(imageIndex, tag, type, count, valueOffset));
+                        continue;
+                    }
+                    extent = Math.max(extent, valueOffset + size);
+                }
+            }
+            extent = Math.max(extent, ifdEnd);
+            ifdOffset = bigTiff ? ifd.getLong((int) (entryCount * entrySize))
+                    : ifd.getInt((int) (entryCount * entrySize)) & 0xffffffffL;
+        }
+
+        // fetch any value arrays that extend past what has been read so far in a single request
+        ensure(extent);
+    }
+
+    /**
+     * @return the array holding the entries of a tag that was left out of the header
+     */
+    protected LazyTiffArray createLazyArray(int imageIndex, int tag, int type, long count, long offset) {
+        return new LazyTiffArray(rangeReader, byteOrder, imageIndex, tag, type, count, offset);
+    }
+
+    /**
+     * Makes sure that all bytes before the given position have been read, fetching the missing bytes if needed.
+     */
+    protected void ensure(long end) throws IOException {
+        long filesize = rangeReader.getFilesize();
+        if (filesize > 0) {
+            end = Math.min(end, filesize);
+        }
+        if (end <= headerLength) {
+            return;
+        }
+        if (loadedHeader != null) {
+            throw new IllegalStateException("IFDs extend past the loaded header");
+        }
+        if (end > maxSize) {
+            throw new IllegalStateException("header extends past the maximum header size of " + maxSize + " bytes");
+        }
+        // read a little extra, the next IFD usually follows the current one
+        long newLength = Math.min(maxSize, roundUp(end));
+        if (filesize > 0) {
+            newLength = Math.min(newLength, filesize);
+        }
+        LOGGER.fine("Extending header of " + uri + " from " + headerLength + " to " + newLength + " bytes");
+        rangeReader.readAsync(new long[]{headerLength, newLength - 1});
+        headerLength = (int) newLength;
+        rangeReader.setHeaderByteLength(headerLength);
+    }
+
+    protected ByteBuffer read(long position, int length) {
+        if (loadedHeader != null) {
+            if (position < 0 || length < 0 || position > loadedHeader.length - length) {
+                throw new IllegalStateException("unable to read " + length + " header bytes at " + position
+                        + " from a loaded header of " + loadedHeader.length + " bytes");
+            }
+            return ByteBuffer.wrap(Arrays.copyOfRange(loadedHeader, (int) position, (int) position + length))
+                    .order(byteOrder == null ? ByteOrder.BIG_ENDIAN : byteOrder);
+        }
+        byte[] bytes;
+        try {
+            bytes = rangeReader.getBytes(position, length);
+        } catch (UncheckedIOException e) {
+            // e.g. an IFD pointing past the end of the file
+            throw new IllegalStateException("unable to read " + length + " header bytes at " + position + ": "
+                    + e.getCause().getMessage());
+        }
+        return ByteBuffer.wrap(bytes).order(byteOrder == null ? ByteOrder.BIG_ENDIAN : byteOrder);
+    }
+
+    protected static int getTypeSize(int type) {
+        switch (type) {
+            case 3: // SHORT
+            case 8: // SSHORT
+                return 2;
+            case 4: // LONG
+            case 9: // SLONG
+            case 11: // FLOAT
+            case 13: // IFD
+                return 4;
+            case 5: // RATIONAL
+            case 10: // SRATIONAL
+            case 12: // DOUBLE
+            case 16: // LONG8
+            case 17: // SLONG8
+            case 18: // IFD8
+                return 8;
+            default: // BYTE, ASCII, SBYTE, UNDEFINED
+                return 1;
+        }
+    }
+
+    protected static int roundUp(long length) {
+        return (int) Math.min(Integer.MAX_VALUE, (length + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE);
+    }
+
+    /**
+     * @return the host and parent path of the source, used to share learned header sizes between similar files
+     */
+    protected static String getPrefix(URI uri) {
+        String path = uri.getPath() == null ? "" : uri.getPath();
+        int slash = path.lastIndexOf('/');
+        return uri.getScheme() + "://" + uri.getAuthority() + (slash >= 0 ? path.substring(0, slash) : "");
+    }
+}
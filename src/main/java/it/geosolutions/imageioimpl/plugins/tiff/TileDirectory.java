@@ -0,0 +1,96 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import it.geosolutions.imageio.plugins.tiff.TIFFField;
+import it.geosolutions.imageioimpl.plugins.tiff.stream.CacheConfig;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The tile (or strip) offsets and byte counts of a single image, parsed into primitive arrays.  Directories are shared
+ * process-wide by source version and image index, so reads of the same COG through new streams do not walk the
+ * TIFFFields of the image metadata again.  The shared directories are bounded both by count and by their total number
+ * of tiles, since a single directory of a huge image holds 16 bytes per tile.
+ */
+public class TileDirectory {
+
+    // maximum number of tile directories kept in memory
+    public static final String COG_TILE_DIRECTORY_CACHE_SIZE = "cog.tileDirectory.cacheSize";
+
+    // maximum number of tiles, summed over all directories, kept in memory
+    public static final String COG_TILE_DIRECTORY_CACHE_TILES = "cog.tileDirectory.cacheTiles";
+
+    private static final int CACHE_SIZE =
+            Integer.parseInt(CacheConfig.getPropertyValue(COG_TILE_DIRECTORY_CACHE_SIZE, "128"));
+    private static final long CACHE_TILES =
+            Long.parseLong(CacheConfig.getPropertyValue(COG_TILE_DIRECTORY_CACHE_TILES, "4194304"));
+    private static final Map<String, TileDirectory> DIRECTORIES = new LinkedHashMap<>(16, 0.75f, true);
+    private static long cachedTiles;
+
+    protected final long[] offsets;
+    protected final long[] byteCounts;
+
+    public TileDirectory(long[] offsets, long[] byteCounts) {
+        this.offsets = offsets;
+        this.byteCounts = byteCounts;
+    }
+
+    /**
+     * @param offsets the TileOffsets, StripOffsets or JPEGInterchangeFormat field
+     * @param byteCounts the TileByteCounts, StripByteCounts or JPEGInterchangeFormatLength field
+     */
+    public static TileDirectory fromFields(TIFFField offsets, TIFFField byteCounts) {
+        return new TileDirectory(toArray(offsets), toArray(byteCounts));
+    }
+
+    private static long[] toArray(TIFFField field) {
+        long[] values = new long[field.getCount()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = field.getAsLong(i);
+        }
+        return values;
+    }
+
+    /**
+     * @param source identifies the source and its version, e.g. its URL and ETag.  Sources without a version must not
+     *               be shared, as their directories would outlive changes to the file
+     * @return the cached directory of the image, or null
+     */
+    public static TileDirectory get(String source, int imageIndex) {
+        synchronized (DIRECTORIES) {
+            return DIRECTORIES.get(source + "#" + imageIndex);
+        }
+    }
+
+    public static void put(String source, int imageIndex, TileDirectory directory) {
+        if (CACHE_SIZE <= 0 || directory.getTileCount() > CACHE_TILES) {
+            return;
+        }
+        synchronized (DIRECTORIES) {
+            TileDirectory previous = DIRECTORIES.put(source + "#" + imageIndex, directory);
+            cachedTiles += directory.getTileCount() - (previous == null ? 0 : previous.getTileCount());
+            // evict the least recently used directories
+            Iterator<TileDirectory> eldest = DIRECTORIES.values().iterator();
+            while ((DIRECTORIES.size() > CACHE_SIZE || cachedTiles > CACHE_TILES) && eldest.hasNext()) {
+                cachedTiles -= eldest.next().getTileCount();
+                eldest.remove();
+            }
+        }
+    }
+
+    public int getTileCount() {
+        return offsets.length;
+    }
+
+    public long getOffset(int tileIndex) {
+        return offsets[tileIndex];
+    }
+
+    /**
+     * @return the byte count of the tile, or -1 if the image has fewer byte counts than offsets
+     */
+    public long getByteCount(int tileIndex) {
+        return tileIndex < byteCounts.length ? byteCounts[tileIndex] : -1;
+    }
+}
@@ -51,6 +51,12 @@ public class CacheConfig {
     // time to live in seconds
     public static final String COG_CACHING_TIME_TO_LIVE = "cog.caching.timeToLive";
 
+    // seconds after which a cached header is revalidated with a conditional request. negative values never revalidate
+    public static final String COG_CACHING_REVALIDATE_INTERVAL = "cog.caching.revalidateInterval";
+
+    // seconds to wait for a tile being fetched by another stream before fetching it directly
+    public static final String COG_CACHING_IN_FLIGHT_TIMEOUT = "cog.caching.inFlightTimeout";
+
     public static final int MEBIBYTE_IN_BYTES = 1048576;
 
     private static boolean useDiskCache;
@@ -35,6 +35,7 @@ public enum CacheManagement implements CogTileCacheProvider {
     public static final String TILE_CACHE = "tile_cache";
     public static final String HEADER_CACHE = "header_cache";
     public static final String FILESIZE_CACHE = "filesize_cache";
+    public static final String VALIDATOR_CACHE = "validator_cache";
     private CacheManager manager;
     private CacheConfig config;
 
@@ -48,7 +49,7 @@ public enum CacheManagement implements CogTileCacheProvider {
     }
 
     /**
-     * Builds caches for tiles, headers, and filesizes.
+     * Builds caches for tiles, headers, filesizes and validators.
      *
      * @param config
      * @param removeCacheIfExists
@@ -70,7 +71,11 @@ public enum CacheManagement implements CogTileCacheProvider {
                 .build());
 
         manager.createCache(FILESIZE_CACHE, CacheConfigurationBuilder
-                .newCacheConfigurationBuilder(String.class, Integer.class, ResourcePoolsBuilder.heap(1000))
+                .newCacheConfigurationBuilder(String.class, Long.class, ResourcePoolsBuilder.heap(1000))
+                .build());
+
+        manager.createCache(VALIDATOR_CACHE, CacheConfigurationBuilder
+                .newCacheConfigurationBuilder(String.class, SourceValidator.class, ResourcePoolsBuilder.heap(1000))
                 .build());
 
         return manager;
@@ -90,8 +95,12 @@ public enum CacheManagement implements CogTileCacheProvider {
         return manager.getCache(HEADER_CACHE, String.class, byte[].class);
     }
 
-    private Cache<String, Integer> getFilesizeCache() {
-        return manager.getCache(FILESIZE_CACHE, String.class, Integer.class);
+    private Cache<String, Long> getFilesizeCache() {
+        return manager.getCache(FILESIZE_CACHE, String.class, Long.class);
+    }
+
+    private Cache<String, SourceValidator> getValidatorCache() {
+        return manager.getCache(VALIDATOR_CACHE, String.class, SourceValidator.class);
     }
 
     @Override
@@ -125,13 +134,14 @@ public enum CacheManagement implements CogTileCacheProvider {
     }
 
     @Override
-    public void cacheFilesize(String key, int size) {
+    public void cacheFilesize(String key, long size) {
         getFilesizeCache().put(key, size);
     }
 
     @Override
-    public int getFilesize(String key) {
-        return getFilesizeCache().get(key);
+    public long getFilesize(String key) {
+        Long filesize = getFilesizeCache().get(key);
+        return filesize == null ? -1 : filesize;
     }
 
     @Override
@@ -139,6 +149,23 @@ public enum CacheManagement implements CogTileCacheProvider {
         return getFilesizeCache().containsKey(key);
     }
 
+    @Override
+    public SourceValidator getValidator(String key) {
+        return getValidatorCache().get(key);
+    }
+
+    @Override
+    public void cacheValidator(String key, SourceValidator validator) {
+        getValidatorCache().put(key, validator);
+    }
+
+    @Override
+    public void invalidate(String key) {
+        getHeaderCache().remove(key);
+        getFilesizeCache().remove(key);
+        getValidatorCache().remove(key);
+    }
+
     public CacheConfig getCacheConfig() {
         return this.config;
     }
@@ -1,16 +1,37 @@
 package it.geosolutions.imageioimpl.plugins.tiff.stream;
 
+import it.geosolutions.imageioimpl.plugins.tiff.CogExecutors;
 import it.geosolutions.imageioimpl.plugins.tiff.CogTileInfo;
-import it.geosolutions.imageioimpl.plugins.tiff.HttpRangeReader;
+import it.geosolutions.imageioimpl.plugins.tiff.LazyTiffArray;
 import it.geosolutions.imageioimpl.plugins.tiff.RangeBuilder;
 import it.geosolutions.imageioimpl.plugins.tiff.RangeReader;
+import it.geosolutions.imageioimpl.plugins.tiff.RangeReaderRegistry;
+import it.geosolutions.imageioimpl.plugins.tiff.ReadPlan;
+import it.geosolutions.imageioimpl.plugins.tiff.TiffHeaderLoader;
 
 import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URL;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 /**
@@ -20,11 +41,34 @@ import java.util.logging.Logger;
 public class CachingHttpCogImageInputStream extends ImageInputStreamImpl implements CogImageInputStream {
 
     protected int headerByteLength = 16384;
+    protected boolean pipelined = Boolean.parseBoolean(CacheConfig.getPropertyValue(COG_READ_PIPELINED, "false"));
 
     protected URI uri;
+    protected String cacheKey;
+    protected String validator;
+    protected long revalidateInterval =
+            Long.parseLong(CacheConfig.getPropertyValue(CacheConfig.COG_CACHING_REVALIDATE_INTERVAL, "300"));
+    protected long inFlightTimeout =
+            Long.parseLong(CacheConfig.getPropertyValue(CacheConfig.COG_CACHING_IN_FLIGHT_TIMEOUT, "60"));
     protected RangeReader rangeReader;
     protected CogTileInfo cogTileInfo;
+    protected List<LazyTiffArray> lazyArrays = Collections.emptyList();
+    // the header of the version of the source this stream reads, and whether this stream read it from the source
+    protected volatile byte[] headerBytes;
+    protected boolean headerLoaded;
+    // tiles this stream is fetching on behalf of every stream, and tiles it is waiting on another stream to fetch
+    protected final Map<TileCacheEntryKey, CompletableFuture<byte[]>> ownedTiles = new ConcurrentHashMap<>();
+    protected final Map<TileCacheEntryKey, CompletableFuture<byte[]>> awaitedTiles = new ConcurrentHashMap<>();
+    // the tiles claimed by each read in progress, released when that read ends
+    protected final Map<ReadPlan, Set<TileCacheEntryKey>> readClaims = new ConcurrentHashMap<>();
+    // completed when the stream is closed, ending every wait for tiles fetched by other streams
+    protected final CompletableFuture<Void> closed = new CompletableFuture<>();
     private static final int HEADER_TILE_INDEX = -100;
+    // tiles currently being fetched by any stream in the process. completed with the tile bytes once cached
+    private static final Map<TileCacheEntryKey, CompletableFuture<byte[]>> IN_FLIGHT_TILES = new ConcurrentHashMap<>();
+    // query parameters of presigned S3 and GCS URLs that change with every signature, besides X-Amz-* and X-Goog-*
+    private static final Set<String> PRESIGN_PARAMETERS = Set.of("AWSAccessKeyId", "Signature", "Expires",
+            "GoogleAccessId");
     private final static Logger LOGGER = Logger.getLogger(CachingHttpCogImageInputStream.class.getName());
 
     public CachingHttpCogImageInputStream(String url) {
@@ -36,24 +80,135 @@ public class CachingHttpCogImageInputStream extends ImageInputStreamImpl impleme
     }
 
     public CachingHttpCogImageInputStream(URI uri) {
+        this(uri, createRangeReader(uri));
+    }
+
+    /**
+     * @param uri the source, used to identify it in logs and caches
+     * @param rangeReader the reader used to fetch bytes from the source
+     */
+    public CachingHttpCogImageInputStream(URI uri, RangeReader rangeReader) {
         this.uri = uri;
+        this.rangeReader = rangeReader;
+        cacheKey = toCacheKey(uri);
 
         cogTileInfo = new CogTileInfo();
-        rangeReader = new HttpRangeReader(uri);
 
-        // determine if the header has already been cached
-        if (!CacheManagement.DEFAULT.headerExists(uri.toString())) {
-            CacheManagement.DEFAULT.cacheHeader(uri.toString(), rangeReader.readHeader(headerByteLength));
-            CacheManagement.DEFAULT.cacheFilesize(uri.toString(), rangeReader.getFilesize());
-            cogTileInfo.addTileRange(HEADER_TILE_INDEX, 0, headerByteLength);
+        try {
+            revalidateHeader();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to revalidate header of " + uri, e);
+        }
+
+        // determine if the header of the current version of the source has already been cached
+        SourceValidator cachedValidator = CacheManagement.DEFAULT.getValidator(cacheKey);
+        long filesize = -1;
+        if (cachedValidator != null) {
+            validator = cachedValidator.getValidator();
+            headerBytes = CacheManagement.DEFAULT.getHeader(toSourceKey(validator));
+            filesize = CacheManagement.DEFAULT.getFilesize(toSourceKey(validator));
+        }
+
+        // tile arrays large enough to be loaded lazily are left out of the cached header.  their blocks are cached
+        // separately as they are fetched
+        TiffHeaderLoader headerLoader = new TiffHeaderLoader(uri, rangeReader) {
+            @Override
+            protected LazyTiffArray createLazyArray(int imageIndex, int tag, int type, long count, long offset) {
+                return new CachingLazyTiffArray(rangeReader, byteOrder, imageIndex, tag, type, count, offset);
+            }
+        };
+        headerLoader.setLazyArrayThreshold(Long.parseLong(
+                CacheConfig.getPropertyValue(TiffHeaderLoader.COG_HEADER_LAZY_ARRAY_THRESHOLD, "0")));
+
+        if (headerBytes == null || filesize < 0) {
+            try {
+                // the cached header covers every IFD and array, even those that extend past the first block
+                headerByteLength = headerLoader.load();
+                headerBytes = rangeReader.getBytes(0, headerByteLength);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read header from " + uri, e);
+            }
+            headerLoaded = true;
+            validator = rangeReader.getValidator();
+            if (validator == null) {
+                LOGGER.warning("Source " + uri + " has no ETag or Last-Modified date, version-safe caching is off: "
+                        + "its cached header and tiles are served until they are evicted, even if it changes");
+            }
+            CacheManagement.DEFAULT.cacheHeader(toSourceKey(validator), headerBytes);
+            CacheManagement.DEFAULT.cacheFilesize(toSourceKey(validator), rangeReader.getFilesize());
+            CacheManagement.DEFAULT.cacheValidator(cacheKey, new SourceValidator(validator, System.currentTimeMillis()));
         } else {
-            byte[] headerBytes = CacheManagement.DEFAULT.getHeader(uri.toString());
             headerByteLength = headerBytes.length;
-            rangeReader.setFilesize(CacheManagement.DEFAULT.getFilesize(uri.toString()));
-            cogTileInfo.addTileRange(HEADER_TILE_INDEX, 0, headerByteLength);
+            rangeReader.setFilesize(filesize);
+            // nothing has been read by this range reader, so tiles overlapping the header must be fetched in full
+            rangeReader.setHeaderByteLength(0);
+            headerLoader.load(headerBytes);
+        }
+        lazyArrays = headerLoader.getLazyArrays();
+        cogTileInfo.addTileRange(HEADER_TILE_INDEX, 0, headerByteLength);
+    }
+
+    /**
+     * Once the revalidate interval has elapsed, checks with a conditional request whether the source has changed and,
+     * if so, drops the cached validator so that a new header is read.  Headers, file sizes and tiles are cached under
+     * the source's validator, so streams still reading the old version keep a consistent view of it and the new
+     * version never sees the old entries.
+     * <p>
+     * A source without a validator cannot be revalidated: its cached entries are kept until they are evicted.
+     */
+    protected void revalidateHeader() throws IOException {
+        SourceValidator cached = CacheManagement.DEFAULT.getValidator(cacheKey);
+        if (cached == null || cached.getValidator() == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (revalidateInterval < 0 || now - cached.getValidatedAt() < revalidateInterval * 1000) {
+            return;
+        }
+        if (rangeReader.isModified(cached.getValidator())) {
+            LOGGER.fine("Source " + uri + " has changed since it was cached, invalidating cached header");
+            CacheManagement.DEFAULT.invalidate(cacheKey);
+            CacheManagement.DEFAULT.invalidate(toSourceKey(cached.getValidator()));
+        } else {
+            CacheManagement.DEFAULT.cacheValidator(cacheKey, new SourceValidator(cached.getValidator(), now));
         }
     }
 
+    /**
+     * @return a reader for the source, created by the RangeReaderFactory registered for its scheme
+     */
+    protected static RangeReader createRangeReader(URI uri) {
+        try {
+            return RangeReaderRegistry.createRangeReader(uri);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to create a range reader for " + uri, e);
+        }
+    }
+
+    /**
+     * Presigned URLs carry a new signature every time they are generated.  The signing parameters are removed so that
+     * every presigned URL for the same object shares its cache entries.  s3:// sources are keyed by bucket and key.
+     *
+     * @return the URI without any presigning query parameters
+     */
+    protected static String toCacheKey(URI uri) {
+        String query = uri.getRawQuery();
+        if (query == null) {
+            return uri.toString();
+        }
+        StringJoiner keptParameters = new StringJoiner("&");
+        for (String parameter : query.split("&")) {
+            String name = parameter.split("=", 2)[0];
+            String lowerCaseName = name.toLowerCase();
+            if (!lowerCaseName.startsWith("x-amz-") && !lowerCaseName.startsWith("x-goog-")
+                    && !PRESIGN_PARAMETERS.contains(name)) {
+                keptParameters.add(parameter);
+            }
+        }
+        String base = uri.toString().substring(0, uri.toString().indexOf('?'));
+        return keptParameters.length() == 0 ? base : base + "?" + keptParameters;
+    }
+
     public CogTileInfo getCogTileInfo() {
         return cogTileInfo;
     }
@@ -63,60 +218,277 @@ public class CachingHttpCogImageInputStream extends ImageInputStreamImpl impleme
         this.headerByteLength = headerByteLength;
     }
 
+    /**
+     * @return the key of the version of the source this stream reads, or null if the source has no validator, as
+     * there would be no way to tell that the file changed
+     */
+    @Override
+    public String getSourceKey() {
+        return validator == null ? null : toSourceKey(validator);
+    }
+
+    /**
+     * @return the key of the given version of the source, under which its header and file size are cached
+     */
+    protected String toSourceKey(String validator) {
+        return validator == null ? cacheKey : cacheKey + "@" + validator;
+    }
+
+    @Override
+    public LazyTiffArray getLazyArray(int imageIndex, int tag) {
+        for (LazyTiffArray lazyArray : lazyArrays) {
+            if (lazyArray.getImageIndex() == imageIndex && lazyArray.getTag() == tag) {
+                return lazyArray;
+            }
+        }
+        return null;
+    }
+
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
     /**
      * TIFFImageReader will read and decode the requested region of the GeoTIFF tile by tile.  Because of this, we will
      * not arbitrarily store fixed-length byte chunks in cache, but instead create a cache entry for all the bytes for
      * each tile.
      * <p>
      * The first step is to loop through the tile ranges from CogTileInfo and determine which tiles are already cached.
-     * Tile ranges that are not in cache are submitted to RangeBuilder to build contiguous ranges to be read via HTTP.
+     * Tiles that are not in cache are claimed in a process-wide in-flight table, so that concurrent streams reading the
+     * same cold tile issue a single request for it.  Tiles claimed by this stream are submitted to RangeBuilder to build
+     * the (optionally gap tolerant) ranges to be read via HTTP; tiles claimed by another stream are awaited instead,
+     * and fetched directly if that stream fails or takes longer than the in-flight timeout.
      * <p>
-     * Once the contiguous ranges have been read, we obtain the full image-length byte array from the RangeReader.  Then
-     * loop through each of the requested tile ranges from CogTileInfo and cache the bytes.
+     * Once the ranges have been read, copy the bytes for each claimed tile out of the RangeReader into cache.  When
+     * pipelined, the ranges are only prefetched and each tile is cached the first time it is read, as soon as its own
+     * bytes have arrived.
+     * <p>
+     * Claims are tracked per read.  When the read ends, or is aborted, the tiles it claimed but did not cache are
+     * released so that streams awaiting them fetch them directly, without affecting other reads of this stream.
      * <p>
      * There are likely lots of optimizations to be made in here.
      */
     @Override
-    public void readRanges() {
-        long firstTileOffset = cogTileInfo.getFirstTileOffset();
-        long firstTileByteLength = cogTileInfo.getFirstTileByteLength();
+    public void readRanges(ReadPlan readPlan) throws IOException {
+        // register the tiles of this read so that the stream can find them by position while the read is in progress
+        cogTileInfo.addTileRanges(readPlan);
+        readPlan.getCompletion().thenRun(() -> cogTileInfo.removeTileRanges(readPlan));
+        long firstTileOffset = readPlan.getFirstTileOffset();
 
         // TODO: is this worth it?  or should we just leave the header alone?
-        if (firstTileOffset < headerByteLength) {
-            byte[] headerBytes = CacheManagement.DEFAULT.getHeader(uri.toString());
-            byte[] newHeaderBytes = Arrays.copyOf(headerBytes, (int) (firstTileOffset - 1));
-            CacheManagement.DEFAULT.cacheHeader(uri.toString(), newHeaderBytes);
+        if (firstTileOffset < headerBytes.length) {
+            headerBytes = Arrays.copyOf(headerBytes, (int) firstTileOffset);
+            // only the header this stream read from the source is written back, under its own version
+            if (headerLoaded) {
+                CacheManagement.DEFAULT.cacheHeader(toSourceKey(validator), headerBytes);
+            }
         }
 
         // instantiate the range builder
-        RangeBuilder rangeBuilder = new RangeBuilder(firstTileOffset, firstTileOffset + firstTileByteLength);
+        RangeBuilder rangeBuilder = new RangeBuilder();
+
+        Set<TileCacheEntryKey> claims = ConcurrentHashMap.newKeySet();
+        readClaims.put(readPlan, claims);
 
         // determine which requested tiles are not in cache and build the required ranges that need to be read (if any)
-        cogTileInfo.getTileRanges().forEach((tileIndex, tileRange) -> {
-            TileCacheEntryKey key = new TileCacheEntryKey(uri.toString(), tileIndex);
-            if (!CacheManagement.DEFAULT.keyExists(key)) {
+        Map<TileCacheEntryKey, CogTileInfo.TileRange> missingTiles = new LinkedHashMap<>();
+        int awaited = 0;
+        for (CogTileInfo.TileRange tileRange : readPlan.getTileRanges()) {
+            TileCacheEntryKey key =
+                    new TileCacheEntryKey(cacheKey, validator, tileRange.getImageIndex(), tileRange.getIndex());
+            if (CacheManagement.DEFAULT.keyExists(key)) {
+                continue;
+            }
+            missingTiles.put(key, tileRange);
+            claims.add(key);
+            CompletableFuture<byte[]> fetch = new CompletableFuture<>();
+            CompletableFuture<byte[]> inFlight = IN_FLIGHT_TILES.putIfAbsent(key, fetch);
+            if (inFlight == null) {
+                ownedTiles.put(key, fetch);
                 rangeBuilder.addTileRange(tileRange.getStart(), tileRange.getByteLength());
+            } else {
+                awaitedTiles.put(key, inFlight);
+                awaited++;
             }
-        });
+        }
+        // registered once the tiles are claimed, so a read that was already aborted releases them right away
+        readPlan.getCancellation().thenRun(() ->
+                releaseTiles(readPlan, new IOException("Reading tiles from " + uri + " was aborted")));
+        readPlan.getCompletion().thenRun(() ->
+                releaseTiles(readPlan, new IOException("Read of " + uri + " ended before the tile was cached")));
 
-        // get the ranges for the tiles that are not already cached.  if there are none, simply return
-        List<long[]> ranges = rangeBuilder.getRanges();
-        if (ranges.size() == 0) {
+        try {
+            fetchTiles(readPlan, rangeBuilder.getRanges(), missingTiles, awaited);
+        } catch (IOException e) {
+            releaseTiles(readPlan, e);
+            throw e;
+        }
+        if (!pipelined) {
+            // every claimed tile has been cached
+            releaseTiles(readPlan, new IOException("Read of " + uri + " ended before the tile was cached"));
+        }
+    }
+
+    /**
+     * Reads the ranges of the tiles claimed by a read and, unless pipelined, caches every missing tile.
+     */
+    protected void fetchTiles(ReadPlan readPlan, List<long[]> ranges,
+                              Map<TileCacheEntryKey, CogTileInfo.TileRange> missingTiles, int awaited)
+            throws IOException {
+        // get the ranges for the tiles that are not already cached or being fetched by another stream
+        if (ranges.size() > 0) {
+            // read all they byte ranges for tiles that are not in cache
+            LOGGER.fine("Submitting " + ranges.size() + " range request(s), awaiting " + awaited
+                    + " tile(s) fetched by other streams");
+            try {
+                if (pipelined) {
+                    rangeReader.prefetch(ranges, readPlan.getCancellation());
+                } else {
+                    rangeReader.readAsync(ranges, readPlan.getCancellation());
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        if (pipelined) {
             return;
         }
 
-        // read all they byte ranges for tiles that are not in cache
-        LOGGER.fine("Submitting " + ranges.size() + " range request(s)");
-        rangeReader.readAsync(ranges);
+        // cache the bytes for each tile this stream fetched before waiting for the tiles fetched by other streams, so
+        // that streams awaiting each other's tiles never block one another.  with virtual threads, each tile is copied
+        // and cached on its own thread
+        List<Map.Entry<TileCacheEntryKey, CogTileInfo.TileRange>> tiles = new ArrayList<>(missingTiles.entrySet());
+        tiles.sort(Comparator.comparing(tile -> !ownedTiles.containsKey(tile.getKey())));
+        List<CompletableFuture<Void>> cacheWrites = new ArrayList<>();
+        for (Map.Entry<TileCacheEntryKey, CogTileInfo.TileRange> tile : tiles) {
+            if (!CogExecutors.isVirtual()) {
+                fetchTile(tile.getKey(), tile.getValue(), readPlan.getCancellation());
+                continue;
+            }
+            cacheWrites.add(CompletableFuture.runAsync(() -> {
+                try {
+                    fetchTile(tile.getKey(), tile.getValue(), readPlan.getCancellation());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, CogExecutors.getExecutor()));
+        }
+        try {
+            CompletableFuture.allOf(cacheWrites.toArray(new CompletableFuture<?>[]{})).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof UncheckedIOException
+                    ? ((UncheckedIOException) e.getCause()).getCause()
+                    : new IOException("Unable to cache tiles of " + uri, e.getCause());
+        }
+    }
+
+    /**
+     * Returns the bytes of a tile that is not in cache.  A tile claimed by this stream is copied out of the
+     * RangeReader, waiting for it if it was prefetched, cached and handed to the streams awaiting it.  A tile claimed
+     * by another stream is awaited.  Any other tile, or one whose fetch failed elsewhere, is read directly.
+     *
+     * @param cancellation completed when the read needing the tile is aborted
+     */
+    protected byte[] fetchTile(TileCacheEntryKey key, CogTileInfo.TileRange tileRange,
+                               CompletableFuture<Void> cancellation) throws IOException {
+        CompletableFuture<byte[]> owned = ownedTiles.remove(key);
+        if (owned != null) {
+            try {
+                byte[] bytes = readTile(key, tileRange);
+                owned.complete(bytes);
+                return bytes;
+            } catch (IOException e) {
+                owned.completeExceptionally(e);
+                throw e;
+            } finally {
+                IN_FLIGHT_TILES.remove(key, owned);
+            }
+        }
+
+        CompletableFuture<byte[]> inFlight = awaitedTiles.remove(key);
+        if (inFlight != null) {
+            byte[] bytes = awaitTile(inFlight, cancellation);
+            if (bytes != null) {
+                return bytes;
+            }
+            LOGGER.fine("Tile " + key.getTileIndex() + " of image " + key.getImageIndex() + " was not fetched by another stream, fetching it directly from " + uri);
+        }
+
+        rangeReader.readAsync(Collections.singletonList(
+                new long[]{tileRange.getStart(), tileRange.getStart() + tileRange.getByteLength() - 1}), cancellation);
+        return readTile(key, tileRange);
+    }
+
+    protected byte[] readTile(TileCacheEntryKey key, CogTileInfo.TileRange tileRange) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = rangeReader.getBytes(tileRange.getStart(), (int) tileRange.getByteLength());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        CacheManagement.DEFAULT.cacheTile(key, bytes);
+        return bytes;
+    }
+
+    /**
+     * Waits for a tile being fetched by another stream.
+     *
+     * @return the tile bytes, or null if the other stream failed or did not fetch the tile within the in-flight timeout
+     * @throws IOException if the read is aborted or this stream is closed while waiting
+     */
+    protected byte[] awaitTile(CompletableFuture<byte[]> inFlight, CompletableFuture<Void> cancellation)
+            throws IOException {
+        try {
+            CompletableFuture.anyOf(inFlight, closed, cancellation).get(inFlightTimeout, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a tile of " + uri);
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        }
+        if (closed.isDone() || cancellation.isDone()) {
+            throw new IOException("Reading tiles from " + uri + " was aborted");
+        }
+        return inFlight.getNow(null);
+    }
+
+    /**
+     * Fails the tiles claimed by a read that have not been fetched, so streams awaiting them fetch them directly, and
+     * stops awaiting the tiles it was waiting for.  Tiles claimed by other reads of this stream are left alone.
+     */
+    protected void releaseTiles(ReadPlan readPlan, Throwable cause) {
+        Set<TileCacheEntryKey> claims = readClaims.remove(readPlan);
+        if (claims == null) {
+            return;
+        }
+        for (TileCacheEntryKey key : claims) {
+            awaitedTiles.remove(key);
+            CompletableFuture<byte[]> fetch = ownedTiles.remove(key);
+            if (fetch != null) {
+                fetch.completeExceptionally(cause);
+                IN_FLIGHT_TILES.remove(key, fetch);
+            }
+        }
+    }
 
-        // cache the bytes for each tile
-        cogTileInfo.getTileRanges().forEach((tileIndex, tileRange) -> {
-            TileCacheEntryKey key = new TileCacheEntryKey(uri.toString(), tileIndex);
-            byte[] tileBytes =
-                    Arrays.copyOfRange(rangeReader.getBytes(), (int) tileRange.getStart(), (int) (tileRange.getEnd()));
-            CacheManagement.DEFAULT.cacheTile(key, tileBytes);
-        });
+    /**
+     * Releases the tiles claimed by every read of this stream.
+     */
+    protected void releaseOwnedTiles(Throwable cause) {
+        new ArrayList<>(readClaims.keySet()).forEach(readPlan -> releaseTiles(readPlan, cause));
+    }
 
+    /**
+     * @return the cancellation of the read in progress that claimed the tile or, if no read claimed it, the closing
+     * of this stream
+     */
+    protected CompletableFuture<Void> getCancellation(TileCacheEntryKey key) {
+        for (Map.Entry<ReadPlan, Set<TileCacheEntryKey>> claims : readClaims.entrySet()) {
+            if (claims.getValue().contains(key)) {
+                return claims.getKey().getCancellation();
+            }
+        }
+        return closed;
     }
 
     @Override
@@ -126,7 +498,7 @@ public class CachingHttpCogImageInputStream extends ImageInputStreamImpl impleme
     }
 
     @Override
-    public int read(byte[] b, int off, int len) {
+    public int read(byte[] b, int off, int len) throws IOException {
         // based on the stream position, determine which tile we are in and fetch the corresponding TileRange
         CogTileInfo.TileRange tileRange = cogTileInfo.getTileRange(streamPos);
 
@@ -134,32 +506,72 @@ public class CachingHttpCogImageInputStream extends ImageInputStreamImpl impleme
         byte[] bytes;
         switch (tileRange.getIndex()) {
             case HEADER_TILE_INDEX:
-                bytes = CacheManagement.DEFAULT.getHeader(uri.toString());
+                bytes = headerBytes;
                 break;
             default:
-                TileCacheEntryKey key = new TileCacheEntryKey(uri.toString(), tileRange.getIndex());
+                TileCacheEntryKey key =
+                        new TileCacheEntryKey(cacheKey, validator, tileRange.getImageIndex(), tileRange.getIndex());
                 bytes = CacheManagement.DEFAULT.getTile(key);
+                if (bytes == null) {
+                    bytes = fetchTile(key, tileRange, getCancellation(key));
+                }
         }
 
         // translate the overall stream position to the stream position of the fetched tile
-        int relativeStreamPos = (int) (streamPos - tileRange.getStart() + off);
+        int relativeStreamPos = (int) (streamPos - tileRange.getStart());
 
         // copy the bytes from the fetched tile into the destination byte array
-        for (long i = 0; i < len; i++) {
-            try {
-                b[(int) i] = bytes[(int) (relativeStreamPos + i)];
-            } catch (Exception e) {
-                LOGGER.fine("Error copying bytes. requested offset: " + off
-                        + " - requested length: " + len
-                        + " - relativeStreamPos: " + relativeStreamPos
-                        + " - streamPos: " + streamPos
-                        + " - tile range start: " + tileRange.getStart()
-                        + " - tile range length: " + tileRange.getByteLength());
-            }
+        int available = Math.max(0, Math.min(len, bytes.length - relativeStreamPos));
+        if (available > 0) {
+            System.arraycopy(bytes, relativeStreamPos, b, off, available);
+        }
+        if (available < len) {
+            LOGGER.fine("Error copying bytes. requested offset: " + off
+                    + " - requested length: " + len
+                    + " - relativeStreamPos: " + relativeStreamPos
+                    + " - streamPos: " + streamPos
+                    + " - tile range start: " + tileRange.getStart()
+                    + " - tile range length: " + tileRange.getByteLength());
         }
 
         streamPos += len;
         return len;
     }
 
+    @Override
+    public void close() throws IOException {
+        closed.complete(null);
+        releaseOwnedTiles(new IOException("Stream for " + uri + " was closed"));
+        super.close();
+        if (rangeReader instanceof Closeable) {
+            ((Closeable) rangeReader).close();
+        }
+    }
+
+    /**
+     * A lazily loaded tile array whose blocks are kept in the tile cache under the version of the source, so streams
+     * opened later only fetch the blocks no other stream has fetched.
+     */
+    protected class CachingLazyTiffArray extends LazyTiffArray {
+
+        public CachingLazyTiffArray(RangeReader rangeReader, ByteOrder byteOrder, int imageIndex, int tag, int type,
+                                    long count, long offset) {
+            super(rangeReader, byteOrder, imageIndex, tag, type, count, offset);
+        }
+
+        @Override
+        protected byte[] getCachedBlock(int block) {
+            return CacheManagement.DEFAULT.getTile(toBlockKey(block));
+        }
+
+        @Override
+        protected void cacheBlock(int block, byte[] bytes) {
+            CacheManagement.DEFAULT.cacheTile(toBlockKey(block), bytes);
+        }
+
+        protected TileCacheEntryKey toBlockKey(int block) {
+            return new TileCacheEntryKey(cacheKey + "#" + tag, validator, imageIndex, block);
+        }
+    }
+
 }
@@ -1,10 +1,13 @@
 package it.geosolutions.imageioimpl.plugins.tiff.stream;
 
+import it.geosolutions.imageioimpl.plugins.tiff.RangeReaderRegistry;
+
 import javax.imageio.spi.ImageInputStreamSpi;
 import javax.imageio.spi.ServiceRegistry;
 import javax.imageio.stream.ImageInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URL;
 import java.util.Iterator;
@@ -29,11 +32,29 @@ public class CachingHttpCogImageInputStreamSpi extends ImageInputStreamSpi {
     @Override
     public ImageInputStream createInputStreamInstance(Object input, boolean useCache, File cacheDir) throws IOException {
         if (input instanceof String || input instanceof URL || input instanceof URI) {
-            return new CachingHttpCogImageInputStream(input.toString());
+            try {
+                return new CachingHttpCogImageInputStream(input.toString());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
         }
         throw new IOException("Invalid input.");
     }
 
+    /**
+     * @return true if the input is a String, URL or URI whose scheme is handled by a registered RangeReaderFactory
+     */
+    public static boolean canRead(Object input) {
+        if (!(input instanceof String || input instanceof URL || input instanceof URI)) {
+            return false;
+        }
+        try {
+            return RangeReaderRegistry.canRead(URI.create(input.toString()));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
     @Override
     public String getDescription(Locale locale) {
         return "Cloud Optimized GeoTIFF reader";
@@ -1,6 +1,10 @@
 package it.geosolutions.imageioimpl.plugins.tiff.stream;
 
 import it.geosolutions.imageioimpl.plugins.tiff.CogTileInfo;
+import it.geosolutions.imageioimpl.plugins.tiff.LazyTiffArray;
+import it.geosolutions.imageioimpl.plugins.tiff.ReadPlan;
+
+import java.io.IOException;
 
 /**
  * @author joshfix
@@ -8,8 +12,31 @@ import it.geosolutions.imageioimpl.plugins.tiff.CogTileInfo;
  */
 public interface CogImageInputStream {
 
-    void readRanges();
+    // whether readRanges should return as soon as the range requests are sent, letting tiles be decoded as their
+    // bytes arrive rather than once every range has been read
+    String COG_READ_PIPELINED = "cog.read.pipelined";
+
+    /**
+     * Fetches the tiles of a single read.  May be called concurrently for different reads on the same stream.
+     */
+    void readRanges(ReadPlan readPlan) throws IOException;
+
+    /**
+     * @return the tiles known to the stream, shared by all of its reads
+     */
     CogTileInfo getCogTileInfo();
     void setHeaderByteLength(int headerByteLength);
 
+    /**
+     * @return a key identifying the source and its version, used to share parsed metadata between streams reading the
+     * same file, or null if it cannot be shared
+     */
+    String getSourceKey();
+
+    /**
+     * @return the tile or strip offsets or byte counts array of the image if it was left out of the header because of
+     * its size, or null if it was read with the header
+     */
+    LazyTiffArray getLazyArray(int imageIndex, int tag);
+
 }
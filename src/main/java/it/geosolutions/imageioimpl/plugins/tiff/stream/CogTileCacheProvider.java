@@ -18,9 +18,22 @@ public interface CogTileCacheProvider {
 
     boolean headerExists(String key);
 
-    int getFilesize(String key);
+    /**
+     * @return the cached file size, or -1 if it is not cached
+     */
+    long getFilesize(String key);
 
-    void cacheFilesize(String key, int filesize);
+    void cacheFilesize(String key, long filesize);
 
     boolean filesizeExists(String key);
+
+    SourceValidator getValidator(String key);
+
+    void cacheValidator(String key, SourceValidator validator);
+
+    /**
+     * Removes the header, file size and validator cached under a key.  Tiles are left to expire, as they are keyed by
+     * the old validator and can no longer be reached.
+     */
+    void invalidate(String key);
 }
@@ -0,0 +1,36 @@
+package it.geosolutions.imageioimpl.plugins.tiff.stream;
+
+import it.geosolutions.imageioimpl.plugins.tiff.FileRangeReader;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * CogImageInputStream for local files.  Tiles are planned the same way as for HTTP sources, but are read with
+ * positional reads or memory mapping by a {@link FileRangeReader} (or the RangeReaderFactory registered for the file
+ * scheme) instead of range requests.  No tile cache is used,
+ * as the operating system's page cache already serves repeated reads.
+ */
+public class FileCogImageInputStream extends HttpCogImageInputStream {
+
+    public FileCogImageInputStream(String path) {
+        this(toPath(path));
+    }
+
+    public FileCogImageInputStream(File file) {
+        this(file.toPath());
+    }
+
+    public FileCogImageInputStream(Path path) {
+        super(path.toUri(), createRangeReader(path.toUri()));
+    }
+
+    /**
+     * @param path a file system path or a file: URI
+     */
+    protected static Path toPath(String path) {
+        return path.startsWith("file:") ? Paths.get(URI.create(path)) : Paths.get(path);
+    }
+}
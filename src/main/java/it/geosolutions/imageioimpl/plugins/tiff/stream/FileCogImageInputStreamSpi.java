@@ -0,0 +1,68 @@
+package it.geosolutions.imageioimpl.plugins.tiff.stream;
+
+import javax.imageio.spi.ImageInputStreamSpi;
+import javax.imageio.stream.ImageInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+public class FileCogImageInputStreamSpi extends ImageInputStreamSpi {
+
+    private static final String vendorName = "Josh Fix";
+    private static final String version = "1.0";
+    private static final Class<File> inputClass = File.class;
+
+    public FileCogImageInputStreamSpi() {
+        super(vendorName, version, inputClass);
+    }
+
+    @Override
+    public ImageInputStream createInputStreamInstance(Object input, boolean useCache, File cacheDir) throws IOException {
+        Path path = toPath(input);
+        if (path == null) {
+            throw new IOException("Invalid input.");
+        }
+        try {
+            return new FileCogImageInputStream(path);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return true if the input is a File, a Path, or a file: URL or URI string
+     */
+    public static boolean canRead(Object input) {
+        return toPath(input) != null;
+    }
+
+    protected static Path toPath(Object input) {
+        if (input instanceof File) {
+            return ((File) input).toPath();
+        }
+        if (input instanceof Path) {
+            return (Path) input;
+        }
+        if (input instanceof URL && "file".equalsIgnoreCase(((URL) input).getProtocol())) {
+            try {
+                return Paths.get(((URL) input).toURI());
+            } catch (URISyntaxException e) {
+                return null;
+            }
+        }
+        if (input instanceof String && ((String) input).startsWith("file:")) {
+            return FileCogImageInputStream.toPath((String) input);
+        }
+        return null;
+    }
+
+    @Override
+    public String getDescription(Locale locale) {
+        return "Cloud Optimized GeoTIFF reader for local files";
+    }
+}
@@ -1,18 +1,23 @@
 package it.geosolutions.imageioimpl.plugins.tiff.stream;
 
 import it.geosolutions.imageioimpl.plugins.tiff.CogTileInfo;
-import it.geosolutions.imageioimpl.plugins.tiff.HttpRangeReader;
+import it.geosolutions.imageioimpl.plugins.tiff.LazyTiffArray;
 import it.geosolutions.imageioimpl.plugins.tiff.RangeBuilder;
 import it.geosolutions.imageioimpl.plugins.tiff.RangeReader;
+import it.geosolutions.imageioimpl.plugins.tiff.RangeReaderRegistry;
+import it.geosolutions.imageioimpl.plugins.tiff.ReadPlan;
+import it.geosolutions.imageioimpl.plugins.tiff.TiffHeaderLoader;
 
 import javax.imageio.stream.IIOByteBuffer;
 import javax.imageio.stream.ImageInputStream;
-import javax.imageio.stream.MemoryCacheImageInputStream;
-import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URL;
 import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
@@ -22,11 +27,13 @@ import java.util.logging.Logger;
 public class HttpCogImageInputStream implements ImageInputStream, CogImageInputStream {
 
     protected int headerByteLength = 16384;
+    protected boolean pipelined = Boolean.parseBoolean(CacheConfig.getPropertyValue(COG_READ_PIPELINED, "false"));
 
     protected URI uri;
     protected CogTileInfo cogTileInfo = new CogTileInfo();
     protected RangeReader rangeReader;
-    protected MemoryCacheImageInputStream delegate;
+    protected ImageInputStream delegate;
+    protected List<LazyTiffArray> lazyArrays = Collections.emptyList();
     private final static Logger LOGGER = Logger.getLogger(HttpCogImageInputStream.class.getName());
 
     public HttpCogImageInputStream(String url) {
@@ -38,11 +45,45 @@ public class HttpCogImageInputStream implements ImageInputStream, CogImageInputS
     }
 
     public HttpCogImageInputStream(URI uri) {
+        this(uri, createRangeReader(uri));
+    }
+
+    /**
+     * @param uri the source, used to identify it in logs and caches
+     * @param rangeReader the reader used to fetch bytes from the source
+     */
+    public HttpCogImageInputStream(URI uri, RangeReader rangeReader) {
         this.uri = uri;
-        rangeReader = new HttpRangeReader(uri);
-        rangeReader.readHeader(headerByteLength);
-        // wrap the result in a MemoryCacheInputStream
-        delegate = new MemoryCacheImageInputStream(new ByteArrayInputStream(rangeReader.getBytes()));
+        this.rangeReader = rangeReader;
+        try {
+            // reads the header along with every IFD and array that extends past the first block, except for tile
+            // arrays large enough to be loaded lazily
+            TiffHeaderLoader headerLoader = new TiffHeaderLoader(uri, rangeReader);
+            headerLoader.setLazyArrayThreshold(Long.parseLong(
+                    CacheConfig.getPropertyValue(TiffHeaderLoader.COG_HEADER_LAZY_ARRAY_THRESHOLD, "0")));
+            headerByteLength = headerLoader.load();
+            lazyArrays = headerLoader.getLazyArrays();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read header from " + uri, e);
+        }
+        // read directly from the bytes held by the range reader.  the arrays left out of the header are parsed as
+        // zeros, their entries are fetched for the tiles being read
+        RangeReaderImageInputStream rangeReaderStream = new RangeReaderImageInputStream(rangeReader);
+        for (LazyTiffArray lazyArray : lazyArrays) {
+            rangeReaderStream.addPlaceholder(lazyArray.getOffset(), lazyArray.getByteLength());
+        }
+        delegate = rangeReaderStream;
+    }
+
+    /**
+     * @return a reader for the source, created by the RangeReaderFactory registered for its scheme
+     */
+    protected static RangeReader createRangeReader(URI uri) {
+        try {
+            return RangeReaderRegistry.createRangeReader(uri);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to create a range reader for " + uri, e);
+        }
     }
 
     @Override
@@ -55,40 +96,51 @@ public class HttpCogImageInputStream implements ImageInputStream, CogImageInputS
         this.headerByteLength = headerByteLength;
     }
 
+    /**
+     * @return the URI and validator of the source, or null if the source has no validator, as there would be no way
+     * to tell that the file changed
+     */
     @Override
-    public void readRanges() {
-        // read data with the RangeReader and set the byte order and pointer on the new input stream
-        long firstTileOffset = cogTileInfo.getFirstTileOffset();
-        long firstTileByteLength = cogTileInfo.getFirstTileByteLength();
-        RangeBuilder rangeBuilder = new RangeBuilder(firstTileOffset, firstTileOffset +firstTileByteLength);
-
-        cogTileInfo.getTileRanges().forEach((tileIndex, tileRange) ->
-                rangeBuilder.addTileRange(tileRange.getStart(), tileRange.getByteLength()));
+    public String getSourceKey() {
+        String validator = rangeReader.getValidator();
+        return validator == null ? null : uri + "@" + validator;
+    }
 
-        // read all of the ranges asynchronously
-        long[][] ranges = rangeBuilder.getRanges().toArray(new long[][]{});
-        LOGGER.fine("Submitting " + ranges.length + " range request(s)");
+    @Override
+    public LazyTiffArray getLazyArray(int imageIndex, int tag) {
+        for (LazyTiffArray lazyArray : lazyArrays) {
+            if (lazyArray.getImageIndex() == imageIndex && lazyArray.getTag() == tag) {
+                return lazyArray;
+            }
+        }
+        return null;
+    }
 
-        rangeReader.readAsync(ranges);
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
 
-        // obtain the byte order and stream position from the existing delegate
-        ByteOrder byteOrder = delegate.getByteOrder();
-        long streamPos = 0;
-        try {
-            streamPos = delegate.getStreamPosition();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    @Override
+    public void readRanges(ReadPlan readPlan) throws IOException {
+        RangeBuilder rangeBuilder = new RangeBuilder();
 
-        // create a new delegate with the newly acquired bytes
-        delegate = new MemoryCacheImageInputStream(new ByteArrayInputStream(rangeReader.getBytes()));
+        readPlan.getTileRanges().forEach(tileRange ->
+                rangeBuilder.addTileRange(tileRange.getStart(), tileRange.getByteLength()));
 
-        // set the byte order and stream position
-        delegate.setByteOrder(byteOrder);
-        try {
-            delegate.seek(streamPos);
-        } catch (IOException e) {
-            e.printStackTrace();
+        // read all of the ranges asynchronously
+        List<long[]> ranges = rangeBuilder.getRanges();
+        LOGGER.fine("Submitting " + ranges.size() + " range request(s)");
+
+        // the delegate reads straight from the range reader, so the new bytes are visible without recreating it.
+        // when pipelined, each read blocks only until the bytes it needs have arrived
+        if (pipelined) {
+            try {
+                rangeReader.prefetch(ranges, readPlan.getCancellation());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } else {
+            rangeReader.readAsync(ranges, readPlan.getCancellation());
         }
     }
 
@@ -127,7 +179,7 @@ public class HttpCogImageInputStream implements ImageInputStream, CogImageInputS
 
     @Override
     public long length() {
-        return rangeReader.getBytes().length;
+        return rangeReader.getFilesize();
     }
 
     @Override
@@ -188,6 +240,9 @@ public class HttpCogImageInputStream implements ImageInputStream, CogImageInputS
     @Override
     public void close() throws IOException {
         delegate.close();
+        if (rangeReader instanceof Closeable) {
+            ((Closeable) rangeReader).close();
+        }
     }
 
     @Override
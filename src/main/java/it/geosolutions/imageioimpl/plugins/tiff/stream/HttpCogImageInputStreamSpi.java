@@ -5,6 +5,7 @@ import javax.imageio.spi.ServiceRegistry;
 import javax.imageio.stream.ImageInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URL;
 import java.util.Iterator;
 import java.util.Locale;
@@ -28,7 +29,11 @@ public class HttpCogImageInputStreamSpi extends ImageInputStreamSpi {
     @Override
     public ImageInputStream createInputStreamInstance(Object input, boolean useCache, File cacheDir) throws IOException {
         if (input instanceof String || input instanceof URL) {
-            return new HttpCogImageInputStream(input.toString());
+            try {
+                return new HttpCogImageInputStream(input.toString());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
         }
         throw new IOException("Invalid input.");
     }
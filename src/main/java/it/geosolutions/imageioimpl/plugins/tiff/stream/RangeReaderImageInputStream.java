@@ -0,0 +1,99 @@
+package it.geosolutions.imageioimpl.plugins.tiff.stream;
+
+import it.geosolutions.imageioimpl.plugins.tiff.RangeReader;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * ImageInputStream that reads directly from the bytes already fetched by a {@link RangeReader}.  Unlike wrapping a
+ * copy of the fetched bytes in a MemoryCacheImageInputStream, no data is duplicated and newly fetched ranges become
+ * visible without recreating the stream.  Reading bytes the range reader has not fetched fails, except within the
+ * ranges declared as placeholders, e.g. arrays deliberately left out of the header, which read as zeros.
+ */
+public class RangeReaderImageInputStream extends ImageInputStreamImpl {
+
+    protected RangeReader rangeReader;
+    // start and end, exclusive, of the ranges that read as zeros
+    protected final TreeMap<Long, Long> placeholders = new TreeMap<>();
+
+    public RangeReaderImageInputStream(RangeReader rangeReader) {
+        this.rangeReader = rangeReader;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        if (streamPos >= length()) {
+            return -1;
+        }
+        bitOffset = 0;
+        byte[] b = new byte[1];
+        readBytes(streamPos++, b, 0, 1);
+        return b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException("off: " + off + " - len: " + len + " - b.length: " + b.length);
+        }
+        if (len == 0) {
+            return 0;
+        }
+        long remaining = length() - streamPos;
+        if (remaining <= 0) {
+            return -1;
+        }
+        bitOffset = 0;
+        len = (int) Math.min(len, remaining);
+        readBytes(streamPos, b, off, len);
+        streamPos += len;
+        return len;
+    }
+
+    /**
+     * Declares a range that is never fetched and reads as zeros.
+     *
+     * @param start the position of the first byte of the range
+     * @param length the length of the range in bytes
+     */
+    public void addPlaceholder(long start, long length) {
+        if (length > 0) {
+            placeholders.merge(start, start + length, Math::max);
+        }
+    }
+
+    protected void readBytes(long position, byte[] b, int off, int len) throws IOException {
+        long end = position + len;
+        while (position < end) {
+            Map.Entry<Long, Long> placeholder = placeholders.floorEntry(position);
+            int count;
+            if (placeholder != null && placeholder.getValue() > position) {
+                count = (int) (Math.min(end, placeholder.getValue()) - position);
+                Arrays.fill(b, off, off + count, (byte) 0);
+            } else {
+                Long next = placeholders.higherKey(position);
+                count = (int) (Math.min(end, next == null ? end : next) - position);
+                try {
+                    rangeReader.readBytes(position, b, off, count);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+            position += count;
+            off += count;
+        }
+    }
+
+    @Override
+    public long length() {
+        return rangeReader.getFilesize();
+    }
+
+}
@@ -0,0 +1,38 @@
+package it.geosolutions.imageioimpl.plugins.tiff.stream;
+
+import java.io.Serializable;
+
+/**
+ * Cached validator of a source, e.g. its ETag, along with the time it was last confirmed with the source.
+ */
+public class SourceValidator implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String validator;
+    private final long validatedAt;
+
+    public SourceValidator(String validator, long validatedAt) {
+        this.validator = validator;
+        this.validatedAt = validatedAt;
+    }
+
+    /**
+     * @return the validator, or null if the source did not provide one
+     */
+    public String getValidator() {
+        return validator;
+    }
+
+    /**
+     * @return the time in milliseconds the validator was last confirmed with the source
+     */
+    public long getValidatedAt() {
+        return validatedAt;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SourceValidator[validator: %s, validated at: %d]", validator, validatedAt);
+    }
+}
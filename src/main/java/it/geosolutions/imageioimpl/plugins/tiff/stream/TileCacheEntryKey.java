@@ -17,15 +17,35 @@
 package it.geosolutions.imageioimpl.plugins.tiff.stream;
 
 import java.io.Serializable;
+import java.util.Objects;
 
 /** Simple key for cache entries */
 public class TileCacheEntryKey implements Serializable {
 
     private String url;
+    private String validator;
+    private int imageIndex;
     private int tileIndex;
 
     public TileCacheEntryKey(String url, int tileIndex) {
+        this(url, null, tileIndex);
+    }
+
+    /**
+     * @param validator the validator (e.g. ETag) of the source the tile was read from, so that tiles of a source that
+     *                  has been replaced are never served
+     */
+    public TileCacheEntryKey(String url, String validator, int tileIndex) {
+        this(url, validator, 0, tileIndex);
+    }
+
+    /**
+     * @param imageIndex the index of the image, e.g. an overview, the tile belongs to
+     */
+    public TileCacheEntryKey(String url, String validator, int imageIndex, int tileIndex) {
         this.url = url;
+        this.validator = validator;
+        this.imageIndex = imageIndex;
         this.tileIndex = tileIndex;
     }
 
@@ -33,13 +53,22 @@ public class TileCacheEntryKey implements Serializable {
         return url;
     }
 
+    public String getValidator() {
+        return validator;
+    }
+
+    public int getImageIndex() {
+        return imageIndex;
+    }
+
     public int getTileIndex() {
         return tileIndex;
     }
 
     @Override
     public String toString() {
-        return String.format("CacheEntry[url: %s, tile index: %d]", url, tileIndex);
+        return String.format("CacheEntry[url: %s, validator: %s, image index: %d, tile index: %d]", url, validator,
+                imageIndex, tileIndex);
     }
 
     @Override
@@ -53,7 +82,7 @@ public class TileCacheEntryKey implements Serializable {
 
         TileCacheEntryKey that = (TileCacheEntryKey) o;
 
-        if (!url.equals(that.url) || tileIndex != that.tileIndex) {
+        if (!url.equals(that.url) || imageIndex != that.imageIndex || tileIndex != that.tileIndex || !Objects.equals(validator, that.validator)) {
             return false;
         }
         return true;
@@ -62,6 +91,8 @@ public class TileCacheEntryKey implements Serializable {
     @Override
     public int hashCode() {
         int result = url.hashCode();
+        result = 31 * result + Objects.hashCode(validator);
+        result = 31 * result + imageIndex;
         result = 31 * result + tileIndex;
         return result;
     }
@@ -0,0 +1,65 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import it.geosolutions.imageio.plugins.tiff.BaselineTIFFTagSet;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageReadParam;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CogImageReaderTest {
+
+    private CogImageReader reader;
+
+    @Before
+    public void setUp() {
+        reader = new CogImageReader(null);
+        // a 3 band image of 3 x 2 tiles
+        reader.samplesPerPixel = 3;
+        reader.tilesAcross = 3;
+        reader.tilesDown = 2;
+    }
+
+    @Test
+    public void listsChunkyTilesRowByRow() {
+        reader.planarConfiguration = BaselineTIFFTagSet.PLANAR_CONFIGURATION_CHUNKY;
+
+        assertEquals(Arrays.asList(1, 2, 4, 5), reader.getTileIndices(null, 1, 0, 2, 1));
+    }
+
+    @Test
+    public void listsPlanarTilesOfEveryBand() {
+        reader.planarConfiguration = BaselineTIFFTagSet.PLANAR_CONFIGURATION_PLANAR;
+
+        // each band is stored after the 6 tiles of the previous band
+        assertEquals(Arrays.asList(1, 2, 4, 5, 7, 8, 10, 11, 13, 14, 16, 17),
+                reader.getTileIndices(null, 1, 0, 2, 1));
+        assertEquals(Arrays.asList(3, 9, 15), reader.getTileIndices(new ImageReadParam(), 0, 1, 0, 1));
+    }
+
+    @Test
+    public void listsPlanarTilesOfSourceBands() {
+        reader.planarConfiguration = BaselineTIFFTagSet.PLANAR_CONFIGURATION_PLANAR;
+        ImageReadParam param = new ImageReadParam();
+        param.setSourceBands(new int[]{2, 0});
+
+        assertEquals(Arrays.asList(12, 13, 15, 16, 0, 1, 3, 4), reader.getTileIndices(param, 0, 0, 1, 1));
+    }
+
+    @Test
+    public void planarSourceBandsDefaultToEveryBand() {
+        assertArrayEquals(new int[]{0, 1, 2}, reader.getPlanarSourceBands(null));
+        assertArrayEquals(new int[]{0, 1, 2}, reader.getPlanarSourceBands(new ImageReadParam()));
+    }
+
+    @Test
+    public void planarSourceBandsSkipBandsTheImageDoesNotHave() {
+        ImageReadParam param = new ImageReadParam();
+        param.setSourceBands(new int[]{2, 5, 1});
+
+        assertArrayEquals(new int[]{2, 1}, reader.getPlanarSourceBands(param));
+    }
+}
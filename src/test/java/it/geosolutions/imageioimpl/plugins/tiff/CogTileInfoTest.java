@@ -0,0 +1,127 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CogTileInfoTest {
+
+    private static final int HEADER = -100;
+
+    @Test
+    public void findsHeaderAndFirstTileWhereTheyOverlap() {
+        CogTileInfo.OffsetIndex index = newIndex(
+                new CogTileInfo.TileRange(HEADER, 0, 16384),
+                new CogTileInfo.TileRange(0, 16000, 1000),
+                new CogTileInfo.TileRange(1, 17000, 1000));
+
+        assertEquals(HEADER, tileAt(index, 0));
+        assertEquals(HEADER, tileAt(index, 15999));
+        // where ranges overlap, the one starting closest to the position wins
+        assertEquals(0, tileAt(index, 16000));
+        assertEquals(0, tileAt(index, 16383));
+        assertEquals(0, tileAt(index, 16999));
+        assertEquals(1, tileAt(index, 17000));
+    }
+
+    @Test
+    public void findsRangeContainingLaterRanges() {
+        CogTileInfo.OffsetIndex index = newIndex(
+                new CogTileInfo.TileRange(HEADER, 0, 20000),
+                new CogTileInfo.TileRange(0, 1000, 1000),
+                new CogTileInfo.TileRange(1, 3000, 1000));
+
+        assertEquals(0, tileAt(index, 1500));
+        // past the contained tiles, the binary search walks back to the header
+        assertEquals(HEADER, tileAt(index, 2500));
+        assertEquals(HEADER, tileAt(index, 19999));
+        assertEquals(-1, index.find(20000));
+    }
+
+    @Test
+    public void usesLastHitAsHint() {
+        CogTileInfo.OffsetIndex index = newIndex(
+                new CogTileInfo.TileRange(0, 0, 100),
+                new CogTileInfo.TileRange(1, 100, 100),
+                new CogTileInfo.TileRange(2, 200, 100),
+                new CogTileInfo.TileRange(3, 300, 100));
+
+        assertEquals(2, tileAt(index, 250));
+        assertEquals(2, index.lastHit);
+        // the same range
+        assertEquals(2, tileAt(index, 299));
+        assertEquals(2, index.lastHit);
+        // the next range
+        assertEquals(3, tileAt(index, 300));
+        assertEquals(3, index.lastHit);
+        // a miss falls back to the binary search
+        assertEquals(0, tileAt(index, 50));
+        assertEquals(0, index.lastHit);
+        assertEquals(-1, index.find(400));
+        assertEquals(0, index.lastHit);
+    }
+
+    @Test
+    public void hintYieldsToLaterOverlappingRange() {
+        CogTileInfo.OffsetIndex index = newIndex(
+                new CogTileInfo.TileRange(HEADER, 0, 20000),
+                new CogTileInfo.TileRange(0, 1000, 1000));
+
+        assertEquals(HEADER, tileAt(index, 500));
+        // the hinted header contains the position, but the tile starts closer to it
+        assertEquals(0, tileAt(index, 1500));
+        assertEquals(HEADER, tileAt(index, 2000));
+    }
+
+    @Test
+    public void skipsZeroLengthTiles() {
+        CogTileInfo.OffsetIndex index = newIndex(
+                new CogTileInfo.TileRange(0, 4000, 1000),
+                new CogTileInfo.TileRange(1, 5000, 0),
+                new CogTileInfo.TileRange(2, 5000, 1000),
+                new CogTileInfo.TileRange(3, 7000, 0));
+
+        assertEquals(2, index.ranges.length);
+        assertEquals(0, tileAt(index, 4999));
+        assertEquals(2, tileAt(index, 5000));
+        assertEquals(-1, index.find(7000));
+    }
+
+    @Test
+    public void findsNothingOutsideTheRanges() {
+        assertEquals(-1, newIndex().find(0));
+
+        CogTileInfo.OffsetIndex index = newIndex(
+                new CogTileInfo.TileRange(0, 100, 100),
+                new CogTileInfo.TileRange(1, 300, 100));
+        assertEquals(-1, index.find(99));
+        assertEquals(-1, index.find(200));
+        assertEquals(-1, index.find(400));
+    }
+
+    @Test
+    public void rebuildsIndexOnceTilesChange() {
+        CogTileInfo cogTileInfo = new CogTileInfo();
+        cogTileInfo.addTileRange(0, 1000, 100);
+        assertEquals(0, cogTileInfo.getTileIndex(1050));
+
+        cogTileInfo.addTileRange(1, 1100, 100);
+        assertEquals(1, cogTileInfo.getTileIndex(1150));
+
+        // the same tile at a new offset
+        cogTileInfo.addTileRange(1, 2000, 100);
+        assertNull(cogTileInfo.getTileRange(1150));
+        assertEquals(1, cogTileInfo.getTileIndex(2050));
+    }
+
+    private static CogTileInfo.OffsetIndex newIndex(CogTileInfo.TileRange... tileRanges) {
+        return new CogTileInfo.OffsetIndex(Arrays.asList(tileRanges), 0);
+    }
+
+    private static int tileAt(CogTileInfo.OffsetIndex index, long offset) {
+        return index.indexes[index.find(offset)];
+    }
+}
@@ -0,0 +1,76 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import org.junit.Test;
+
+import java.net.URI;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HttpRangeReaderTest {
+
+    private final HttpRangeReader rangeReader = new HttpRangeReader(URI.create("http://localhost/cog.tif"));
+
+    @Test
+    public void keepsRangesWhenSplittingIsDisabled() {
+        rangeReader.setMaxRangeSize(0);
+        long[][] ranges = {{0, 999_999}};
+
+        assertSame(ranges, rangeReader.splitRanges(ranges));
+    }
+
+    @Test
+    public void keepsRangesOfMaxRangeSize() {
+        rangeReader.setMaxRangeSize(100);
+        rangeReader.setMaxSubRanges(8);
+
+        assertRanges(rangeReader.splitRanges(new long[][]{{0, 99}, {200, 299}}), new long[]{0, 99},
+                new long[]{200, 299});
+    }
+
+    @Test
+    public void splitsRangesLongerThanMaxRangeSizeEvenly() {
+        rangeReader.setMaxRangeSize(100);
+        rangeReader.setMaxSubRanges(8);
+
+        // one byte over the limit needs two requests of about half the range each
+        assertRanges(rangeReader.splitRanges(new long[][]{{0, 100}}), new long[]{0, 50}, new long[]{51, 100});
+        assertRanges(rangeReader.splitRanges(new long[][]{{1000, 1299}}), new long[]{1000, 1099},
+                new long[]{1100, 1199}, new long[]{1200, 1299});
+    }
+
+    @Test
+    public void capsSubRangesAtMaxSubRanges() {
+        rangeReader.setMaxRangeSize(100);
+        rangeReader.setMaxSubRanges(4);
+
+        // ten requests would be needed, so the four sub-ranges exceed the maximum range size
+        assertRanges(rangeReader.splitRanges(new long[][]{{0, 999}}), new long[]{0, 249}, new long[]{250, 499},
+                new long[]{500, 749}, new long[]{750, 999});
+    }
+
+    @Test
+    public void subRangesCoverTheRangeExactly() {
+        rangeReader.setMaxRangeSize(7);
+        rangeReader.setMaxSubRanges(3);
+
+        long[][] subRanges = rangeReader.splitRanges(new long[][]{{10, 33}});
+        assertTrue(subRanges.length <= 3);
+        long next = 10;
+        for (long[] subRange : subRanges) {
+            assertEquals(next, subRange[0]);
+            assertTrue(subRange[1] >= subRange[0]);
+            next = subRange[1] + 1;
+        }
+        assertEquals(34, next);
+    }
+
+    private static void assertRanges(long[][] ranges, long[]... expected) {
+        assertEquals(expected.length, ranges.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], ranges[i]);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class LazyTiffArrayTest {
+
+    private static final int OFFSET = 4096;
+    private static final int COUNT = 5000;
+    // TIFF type LONG
+    private static final int TYPE = 4;
+
+    private HttpServer server;
+    private HttpRangeReader rangeReader;
+
+    @Before
+    public void setUp() throws IOException {
+        ByteBuffer file = ByteBuffer.allocate(OFFSET + COUNT * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < COUNT; i++) {
+            file.putInt(OFFSET + i * 4, i * 10);
+        }
+        byte[] bytes = file.array();
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/cog.tif", exchange -> {
+            String[] range = exchange.getRequestHeaders().getFirst("Range").substring(6).split("-");
+            int start = Integer.parseInt(range[0]);
+            int end = Math.min(bytes.length - 1, Integer.parseInt(range[1]));
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + bytes.length);
+            exchange.sendResponseHeaders(206, end - start + 1);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(bytes, start, end - start + 1);
+            }
+        });
+        server.start();
+
+        rangeReader = new HttpRangeReader(
+                URI.create("http://localhost:" + server.getAddress().getPort() + "/cog.tif"));
+        rangeReader.readHeader(1024);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void fetchedBlocksSurviveAbortedRead() throws IOException {
+        LazyTiffArray lazyArray = newLazyArray();
+        List<Integer> indices = Arrays.asList(0, 1500, COUNT - 1);
+        CompletableFuture<Void> cancellation = new CompletableFuture<>();
+        lazyArray.fetch(indices, cancellation);
+
+        // abort the read and drop every page the range reader holds
+        cancellation.complete(null);
+        rangeReader.cancel();
+        rangeReader.getStore().release(0, Long.MAX_VALUE);
+
+        for (int index : indices) {
+            assertEquals(index * 10L, lazyArray.get(index));
+        }
+    }
+
+    @Test
+    public void abortedFetchIsFetchedAgain() throws IOException {
+        LazyTiffArray lazyArray = newLazyArray();
+        List<Integer> indices = Arrays.asList(10, 2048);
+        CompletableFuture<Void> cancellation = new CompletableFuture<>();
+        cancellation.complete(null);
+        try {
+            lazyArray.fetch(indices, cancellation);
+            fail("fetch should fail once its read has been aborted");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            lazyArray.get(10);
+            fail("entries of an aborted fetch should not be available");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        lazyArray.fetch(indices);
+        for (int index : indices) {
+            assertEquals(index * 10L, lazyArray.get(index));
+        }
+    }
+
+    private LazyTiffArray newLazyArray() {
+        // TileOffsets
+        return new LazyTiffArray(rangeReader, ByteOrder.LITTLE_ENDIAN, 0, 324, TYPE, COUNT, OFFSET);
+    }
+}
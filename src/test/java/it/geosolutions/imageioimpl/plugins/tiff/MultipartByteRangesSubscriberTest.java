@@ -0,0 +1,162 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MultipartByteRangesSubscriberTest {
+
+    private static final String BOUNDARY = "THIS_STRING_SEPARATES";
+
+    private final SparsePageStore store = new SparsePageStore(16, false);
+
+    @Test
+    public void writesEachPart() throws Exception {
+        String body = "preamble\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Range: bytes 10-14/100\r\n"
+                + "\r\n"
+                + "abcde\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Range: bytes 40-42/100\r\n"
+                + "\r\n"
+                + "xyz\r\n"
+                + "--" + BOUNDARY + "--\r\n";
+        List<long[]> ranges = parse(body.getBytes(StandardCharsets.ISO_8859_1));
+
+        assertEquals(2, ranges.size());
+        assertArrayEquals(new long[]{10, 14}, ranges.get(0));
+        assertArrayEquals(new long[]{40, 42}, ranges.get(1));
+        assertArrayEquals("abcde".getBytes(StandardCharsets.ISO_8859_1), store.read(10, 5));
+        assertArrayEquals("xyz".getBytes(StandardCharsets.ISO_8859_1), store.read(40, 3));
+    }
+
+    @Test
+    public void parsesPartsSplitAcrossBuffers() throws Exception {
+        String body = "--" + BOUNDARY + "\r\n"
+                + "Content-Range: bytes 0-19/100\r\n"
+                + "\r\n"
+                + "0123456789abcdefghij\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Range: bytes 50-53/100\r\n"
+                + "\r\n"
+                + "wxyz\r\n"
+                + "--" + BOUNDARY + "--\r\n";
+        byte[] bytes = body.getBytes(StandardCharsets.ISO_8859_1);
+
+        // every split point, including inside delimiters, headers and part bodies
+        for (int split = 1; split < bytes.length; split++) {
+            SparsePageStore splitStore = new SparsePageStore(16, false);
+            MultipartByteRangesSubscriber subscriber = new MultipartByteRangesSubscriber(BOUNDARY, splitStore);
+            subscriber.onSubscribe(new NoopSubscription());
+            subscriber.onNext(Collections.singletonList(ByteBuffer.wrap(bytes, 0, split)));
+            subscriber.onNext(Collections.singletonList(ByteBuffer.wrap(bytes, split, bytes.length - split)));
+            subscriber.onComplete();
+
+            List<long[]> ranges = subscriber.getBody().toCompletableFuture().get();
+            assertEquals("split at " + split, 2, ranges.size());
+            assertArrayEquals("0123456789abcdefghij".getBytes(StandardCharsets.ISO_8859_1), splitStore.read(0, 20));
+            assertArrayEquals("wxyz".getBytes(StandardCharsets.ISO_8859_1), splitStore.read(50, 4));
+        }
+    }
+
+    @Test
+    public void acceptsTransportPaddingAfterDelimiters() throws Exception {
+        String body = "--" + BOUNDARY + " \t \r\n"
+                + "Content-Range: bytes 5-7/100\r\n"
+                + "\r\n"
+                + "abc\r\n"
+                + "--" + BOUNDARY + "--  \r\n";
+        List<long[]> ranges = parse(body.getBytes(StandardCharsets.ISO_8859_1));
+
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new long[]{5, 7}, ranges.get(0));
+        assertArrayEquals("abc".getBytes(StandardCharsets.ISO_8859_1), store.read(5, 3));
+    }
+
+    @Test
+    public void returnsReceivedRangesWithoutCloseDelimiter() throws Exception {
+        // the second part is cut short and there is no close delimiter
+        String body = "--" + BOUNDARY + "\r\n"
+                + "Content-Range: bytes 0-3/100\r\n"
+                + "\r\n"
+                + "abcd\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Range: bytes 20-29/100\r\n"
+                + "\r\n"
+                + "01234";
+        List<long[]> ranges = parse(body.getBytes(StandardCharsets.ISO_8859_1));
+
+        // only the complete part is reported, so the caller requests the rest again
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new long[]{0, 3}, ranges.get(0));
+    }
+
+    @Test
+    public void failsOnOverlongHeaderLine() throws InterruptedException {
+        StringBuilder header = new StringBuilder("X-Padding: ");
+        while (header.length() <= 8192) {
+            header.append('x');
+        }
+        String body = "--" + BOUNDARY + "\r\n" + header + "\r\n";
+        try {
+            parse(body.getBytes(StandardCharsets.ISO_8859_1));
+            fail("an over-long line should fail the body");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void failsOnPartWithoutContentRange() throws InterruptedException {
+        String body = "--" + BOUNDARY + "\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "\r\n"
+                + "abcd\r\n";
+        try {
+            parse(body.getBytes(StandardCharsets.ISO_8859_1));
+            fail("a part without a Content-Range should fail the body");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void parsesHeaders() {
+        assertEquals(BOUNDARY, MultipartByteRangesSubscriber.getBoundary(
+                "multipart/byteranges; boundary=\"" + BOUNDARY + "\""));
+        assertEquals(null, MultipartByteRangesSubscriber.getBoundary("application/octet-stream"));
+        assertArrayEquals(new long[]{500, 999}, MultipartByteRangesSubscriber.parseContentRange("bytes 500-999/8000"));
+        assertEquals(null, MultipartByteRangesSubscriber.parseContentRange("bytes */8000"));
+    }
+
+    private List<long[]> parse(byte[] body) throws ExecutionException, InterruptedException {
+        MultipartByteRangesSubscriber subscriber = new MultipartByteRangesSubscriber(BOUNDARY, store);
+        subscriber.onSubscribe(new NoopSubscription());
+        subscriber.onNext(Collections.singletonList(ByteBuffer.wrap(body)));
+        subscriber.onComplete();
+        return subscriber.getBody().toCompletableFuture().get();
+    }
+
+    private static class NoopSubscription implements Flow.Subscription {
+
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class RangeBuilderTest {
+
+    @Test
+    public void mergesContiguousAndOverlappingTilesInOffsetOrder() {
+        RangeBuilder builder = RangeBuilder.exact();
+        builder.addTileRange(10, 10);
+        builder.addTileRange(0, 10);
+        builder.addTileRange(15, 10);
+        builder.addTileRange(100, 0);
+
+        assertRanges(builder.getRanges(), new long[]{0, 24});
+    }
+
+    @Test
+    public void exactBuilderDoesNotBridgeGaps() {
+        RangeBuilder builder = RangeBuilder.exact();
+        builder.addTileRange(0, 10);
+        builder.addTileRange(11, 10);
+
+        assertRanges(builder.getRanges(), new long[]{0, 9}, new long[]{11, 20});
+    }
+
+    @Test
+    public void bridgesGapsUpToMaxGap() {
+        RangeBuilder builder = new RangeBuilder(10, 1.0);
+        builder.addTileRange(0, 10);
+        // a gap of exactly maxGap bytes is bridged
+        builder.addTileRange(20, 10);
+        // a gap of maxGap + 1 bytes is not
+        builder.addTileRange(41, 10);
+
+        assertRanges(builder.getRanges(), new long[]{0, 29}, new long[]{41, 50});
+    }
+
+    @Test
+    public void bridgesGapsUpToMaxWasteRatio() {
+        // 10 filler bytes in a 40 byte range is exactly the limit
+        RangeBuilder atLimit = new RangeBuilder(100, 0.25);
+        atLimit.addTileRange(0, 10);
+        atLimit.addTileRange(20, 20);
+        assertRanges(atLimit.getRanges(), new long[]{0, 39});
+
+        RangeBuilder overLimit = new RangeBuilder(100, 0.24);
+        overLimit.addTileRange(0, 10);
+        overLimit.addTileRange(20, 20);
+        assertRanges(overLimit.getRanges(), new long[]{0, 9}, new long[]{20, 39});
+    }
+
+    @Test
+    public void accumulatesWasteAcrossBridgedGaps() {
+        RangeBuilder builder = new RangeBuilder(100, 0.35);
+        builder.addTileRange(0, 10);
+        // 10 of 30 bytes are filler
+        builder.addTileRange(20, 10);
+        // 20 of 50 bytes would be filler, so a new range starts
+        builder.addTileRange(40, 10);
+        // 10 of 30 bytes of the new range are filler
+        builder.addTileRange(60, 10);
+
+        assertRanges(builder.getRanges(), new long[]{0, 29}, new long[]{40, 69});
+    }
+
+    private static void assertRanges(List<long[]> ranges, long[]... expected) {
+        assertEquals(expected.length, ranges.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], ranges.get(i));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RangeRequestBatcherTest {
+
+    private final byte[] file = new byte[1_000_000];
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+    // the number of body bytes the server sends before closing the response, or -1 for the whole range
+    private volatile int truncateAfter = -1;
+    private HttpServer server;
+    private URI uri;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < file.length; i++) {
+            file[i] = (byte) (i * 7 + 1);
+        }
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/cog.tif", exchange -> {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            requests.add(range);
+            String[] positions = range.substring(6).split("-");
+            int start = Integer.parseInt(positions[0]);
+            int end = Math.min(file.length - 1, Integer.parseInt(positions[1]));
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + file.length);
+            int length = end - start + 1;
+            exchange.sendResponseHeaders(206, truncateAfter < 0 ? length : 0);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(file, start, truncateAfter < 0 ? length : Math.min(length, truncateAfter));
+            }
+        });
+        server.start();
+        uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/cog.tif");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void mergesRangesBeforeSplitting() throws Exception {
+        HttpRangeReader first = newRangeReader();
+        HttpRangeReader second = newRangeReader();
+        requests.clear();
+
+        CompletableFuture.allOf(read(first, 100_000, 499_999), read(second, 500_000, 899_999)).get();
+
+        // 800000 adjacent bytes merged into one range, then split into requests of at most 300000 bytes
+        assertEquals(3, requests.size());
+        assertArrayEquals(expected(100_000, 400_000), first.getBytes(100_000, 400_000));
+        assertArrayEquals(expected(500_000, 400_000), second.getBytes(500_000, 400_000));
+    }
+
+    @Test
+    public void failsReadersMissingBytesOfShortBody() throws Exception {
+        HttpRangeReader first = newRangeReader();
+        HttpRangeReader second = newRangeReader();
+        truncateAfter = 150_000;
+
+        CompletableFuture<Void> complete = read(first, 200_000, 299_999);
+        CompletableFuture<Void> truncated = read(second, 300_000, 449_999);
+        complete.get();
+        assertArrayEquals(expected(200_000, 100_000), first.getBytes(200_000, 100_000));
+        try {
+            truncated.get();
+            fail("the read missing the end of the body should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UncheckedIOException);
+        }
+    }
+
+    @Test
+    public void onlyBatchesReadersWithTheSameKey() {
+        HttpRangeReader first = newRangeReader();
+        HttpRangeReader second = newRangeReader();
+        assertEquals(first.getBatchKey(), second.getBatchKey());
+
+        S3RangeReader signed = new S3RangeReader("s3://bucket/cog.tif");
+        S3RangeReader otherCredentials = new S3RangeReader("s3://bucket/cog.tif");
+        signed.setCredentials("a", "secret", null);
+        otherCredentials.setCredentials("b", "secret", null);
+        assertTrue(!signed.getBatchKey().equals(otherCredentials.getBatchKey()));
+    }
+
+    private HttpRangeReader newRangeReader() {
+        HttpRangeReader rangeReader = new HttpRangeReader(uri);
+        try {
+            rangeReader.readHeader(1024);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        rangeReader.setBatchWindow(100);
+        rangeReader.setMaxRangeSize(300_000);
+        return rangeReader;
+    }
+
+    private static CompletableFuture<Void> read(HttpRangeReader rangeReader, long start, long end) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                rangeReader.readAsync(new long[]{start, end});
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private byte[] expected(int start, int length) {
+        byte[] bytes = new byte[length];
+        System.arraycopy(file, start, bytes, 0, length);
+        return bytes;
+    }
+}
@@ -0,0 +1,82 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import org.junit.Test;
+
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SparsePageStoreTest {
+
+    private final SparsePageStore store = new SparsePageStore(16, false);
+
+    @Test
+    public void readsWrittenBytesAcrossPages() {
+        store.write(10, bytes(10, 20));
+        assertArrayEquals(bytes(10, 20), store.read(10, 20));
+    }
+
+    @Test
+    public void mergesAdjacentWrites() {
+        store.write(4, bytes(4, 4));
+        store.write(8, bytes(8, 4));
+        store.write(0, bytes(0, 4));
+        assertTrue(store.isWritten(0, 12));
+        assertArrayEquals(bytes(0, 12), store.read(0, 12));
+    }
+
+    @Test
+    public void failsOnUnwrittenBytesOfWrittenPage() {
+        store.write(0, bytes(0, 4));
+        store.write(8, bytes(8, 4));
+        assertFalse(store.isWritten(0, 12));
+        assertUnreadable(2, 8);
+    }
+
+    @Test
+    public void failsOnUnallocatedPage() {
+        store.write(0, bytes(0, 16));
+        assertUnreadable(16, 1);
+    }
+
+    @Test
+    public void failsOnReleasedPages() {
+        store.write(0, bytes(0, 48));
+        store.release(16, Long.MAX_VALUE);
+        assertArrayEquals(bytes(0, 16), store.read(0, 16));
+        assertUnreadable(16, 1);
+        assertUnreadable(40, 4);
+    }
+
+    @Test
+    public void releasesOnlyTheWritersPages() {
+        Object first = new Object();
+        Object second = new Object();
+        store.write(0, ByteBuffer.wrap(bytes(0, 16)), first);
+        store.write(16, ByteBuffer.wrap(bytes(16, 16)), second);
+        store.release(0, 31, second);
+        assertArrayEquals(bytes(0, 16), store.read(0, 16));
+        assertUnreadable(16, 16);
+    }
+
+    private void assertUnreadable(long position, int length) {
+        try {
+            store.read(position, length);
+            fail("reading " + length + " bytes at " + position + " should fail");
+        } catch (UncheckedIOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] bytes(int first, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (first + i);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,77 @@
+package it.geosolutions.imageioimpl.plugins.tiff;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TiffHeaderLoaderTest {
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("header", ".tif");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void fallsBackOnOverflowingEntryCount() throws IOException {
+        // the entry count times the entry size overflows an int, and a long
+        byte[] header = bigTiffHeader(16, 1L << 61);
+        Files.write(file, header);
+
+        try (FileRangeReader rangeReader = new FileRangeReader(file, 0)) {
+            TiffHeaderLoader loader = new TiffHeaderLoader(file.toUri(), rangeReader, 16384, 1048576);
+            assertEquals(header.length, loader.load());
+            assertTrue(loader.getLazyArrays().isEmpty());
+        }
+    }
+
+    @Test
+    public void fallsBackOnIfdPastTheEndOfTheFile() throws IOException {
+        byte[] header = bigTiffHeader(1L << 40, 1);
+        Files.write(file, header);
+
+        try (FileRangeReader rangeReader = new FileRangeReader(file, 0)) {
+            TiffHeaderLoader loader = new TiffHeaderLoader(file.toUri(), rangeReader, 16384, 1048576);
+            assertEquals(header.length, loader.load());
+        }
+    }
+
+    @Test
+    public void ignoresCorruptLoadedHeader() throws IOException {
+        try (FileRangeReader rangeReader = new FileRangeReader(file, 0)) {
+            TiffHeaderLoader overflowing = new TiffHeaderLoader(file.toUri(), rangeReader, 16384, 1048576);
+            overflowing.load(bigTiffHeader(16, 1L << 61));
+            assertTrue(overflowing.getLazyArrays().isEmpty());
+
+            TiffHeaderLoader negative = new TiffHeaderLoader(file.toUri(), rangeReader, 16384, 1048576);
+            negative.load(bigTiffHeader(-8, 1));
+            assertTrue(negative.getLazyArrays().isEmpty());
+        }
+    }
+
+    /**
+     * @return a little endian BigTIFF header pointing to an IFD with the given entry count at 16
+     */
+    private static byte[] bigTiffHeader(long ifdOffset, long entryCount) {
+        ByteBuffer header = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'I').put((byte) 'I').putShort((short) 43).putShort((short) 8).putShort((short) 0);
+        header.putLong(ifdOffset);
+        header.putLong(entryCount);
+        return header.array();
+    }
+}